@@ -0,0 +1,55 @@
+package lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs benchmark scripts in one JVM, each over and over with a fresh interpreter,
+ * and prints the mean and minimum time of an iteration after the warm-up.
+ * Print output is discarded. Options like -Dlox.dispatch hold for the whole run,
+ * so bench/dispatch.sh starts one JVM per mode.
+ *
+ *   java -cp build/classes:build/bench lox.ScriptBench bench/fib.lox ...
+ */
+class ScriptBench {
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 5);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 10);
+
+    public static void main(String[] args) throws Exception {
+        OutputSink discard = new OutputSink() {
+            @Override
+            public void println(CharSequence text) {
+            }
+
+            @Override
+            public void flush() {
+            }
+        };
+        PrintStream errors = new PrintStream(OutputStream.nullOutputStream());
+
+        for (String path : args) {
+            String source = new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+            Path directory = Paths.get(path).toAbsolutePath().getParent();
+            for (int i = 0; i < WARMUP; i++) {
+                new Lox(discard, errors).runScript(source, directory);
+            }
+
+            long total = 0;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                new Lox(discard, errors).runScript(source, directory);
+                long time = System.nanoTime() - start;
+                total += time;
+                min = Math.min(min, time);
+            }
+            // the minimum is less affected by GC and compiler threads
+            System.out.printf("%-24s %8.1f ms mean %8.1f ms min%n", Paths.get(path).getFileName(),
+                    total / ITERATIONS / 1e6, min / 1e6);
+        }
+    }
+}
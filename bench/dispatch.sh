@@ -0,0 +1,16 @@
+#!/usr/bin/env bash
+# Node dispatch: accept() on the visitor against a pattern matching switch over
+# the node classes (-Dlox.dispatch=type) and a switch over the node kind
+# ordinals (-Dlox.dispatch=kind). Every mode runs in its own JVM, scripts are
+# repeated in-process by ScriptBench so the times are after JIT warm-up.
+# Build first with 'make bench-dispatch', which also runs this.
+set -e
+
+JAVA=${JAVA:-java}
+CLASSPATH=build/classes:build/bench
+SCRIPTS=${SCRIPTS:-"bench/fib.lox bench/method_calls.lox bench/small_functions.lox bench/loop_invariants.lox bench/counted_loop.lox bench/string_concat.lox"}
+
+for mode in visitor type kind; do
+    echo "== $mode"
+    "$JAVA" -Dlox.dispatch=$mode -cp "$CLASSPATH" lox.ScriptBench $SCRIPTS
+done
@@ -0,0 +1,16 @@
+#!/usr/bin/env bash
+# The tree walker against the flattened operator trees (-Dlox.ast=flat).
+# Every script runs in its own JVM, repeated in-process by ScriptBench so the
+# times are after JIT warm-up. Build first with 'make bench-flat', which also runs this.
+set -e
+
+JAVA=${JAVA:-java}
+CLASSPATH=build/classes:build/bench
+SCRIPTS=${SCRIPTS:-"bench/expressions.lox bench/fib.lox bench/loop_invariants.lox bench/counted_loop.lox"}
+
+for script in $SCRIPTS; do
+    for mode in tree flat; do
+        printf '%-6s' $mode
+        "$JAVA" -Dlox.ast=$mode -cp "$CLASSPATH" lox.ScriptBench "$script"
+    done
+done
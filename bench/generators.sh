@@ -0,0 +1,18 @@
+#!/usr/bin/env bash
+# The range -> map -> filter -> sum pipeline with generators and with a list
+# per stage, each in a JVM with a small heap (HEAP, 64m by default).
+# The generators hold one element per stage, the lists all of them,
+# so the list version runs out of memory unless the heap is much larger.
+# Prints the time the script reports, or the error it ended with.
+# Build first with 'make'.
+
+JAVA=${JAVA:-java}
+HEAP=${HEAP:-64m}
+JAR=build/jlox.jar
+
+printf '%-24s %s\n' script "time (-Xmx$HEAP)"
+for script in bench/generators.lox bench/generator_lists.lox; do
+    result=$("$JAVA" -Xmx$HEAP -jar "$JAR" "$script" < /dev/null 2>&1 \
+        | grep -m 1 -o 'seconds: .*\|java.lang.OutOfMemoryError.*')
+    printf '%-24s %s\n' "$(basename "$script")" "$result"
+done
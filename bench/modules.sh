@@ -0,0 +1,37 @@
+#!/usr/bin/env bash
+# A script that calls three functions of a library of FUNCTIONS functions (400 by default),
+# once with the library pasted in front of it and once importing it.
+# ScriptBench runs every iteration with a fresh Lox in the same JVM, like the
+# scripts of a Daemon, so the import finds the library's tokens in the cache.
+# The scripts are generated into build/bench/modules.
+# Build first with 'make bench-modules', which also runs this.
+set -e
+
+JAVA=${JAVA:-java}
+CLASSPATH=build/classes:build/bench
+FUNCTIONS=${FUNCTIONS:-400}
+DIR=build/bench/modules
+mkdir -p $DIR
+
+for ((i = 0; i < FUNCTIONS; i++)); do
+    cat <<LOX
+fun f$i(n) {
+  var total = 0;
+  for (var i = 0; i < n; i = i + 1) {
+    if (i - 2 * floor(i / 2) == 0) total = total + i * $i; else total = total - i;
+  }
+  return total;
+}
+LOX
+done > $DIR/library.lox
+
+{
+    cat $DIR/library.lox
+    echo 'print f0(10) + f1(10) + f2(10);'
+} > $DIR/concatenated.lox
+{
+    echo "import \"$DIR/library.lox\";"
+    echo 'print library.f0(10) + library.f1(10) + library.f2(10);'
+} > $DIR/imported.lox
+
+"$JAVA" -cp "$CLASSPATH" lox.ScriptBench $DIR/concatenated.lox $DIR/imported.lox
@@ -0,0 +1,16 @@
+#!/usr/bin/env bash
+# parallelMap() on 1, 2 and 4 processors, against the same rows computed in a loop.
+# The processor count the JVM sees sizes the common ForkJoinPool. Every script runs
+# in its own JVM, repeated in-process by ScriptBench so the times are after JIT warm-up.
+# Build first with 'make bench-parallel', which also runs this.
+set -e
+
+JAVA=${JAVA:-java}
+CLASSPATH=build/classes:build/bench
+
+printf '%-6s' loop
+"$JAVA" -cp "$CLASSPATH" lox.ScriptBench bench/numeric_locals.lox
+for processors in ${PROCESSORS:-1 2 4}; do
+    printf '%-6s' $processors
+    "$JAVA" -XX:ActiveProcessorCount=$processors -cp "$CLASSPATH" lox.ScriptBench bench/parallel_map.lox
+done
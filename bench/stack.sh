@@ -0,0 +1,30 @@
+#!/usr/bin/env bash
+# Overhead of the explicit heap stack (-Dlox.stack=heap) over the recursive
+# tree walker: runs each benchmark in both modes and prints the mean wall time.
+# Build first with 'make'.
+set -e
+
+JAVA=${JAVA:-java}
+RUNS=${RUNS:-5}
+JAR=build/jlox.jar
+SCRIPTS=${SCRIPTS:-"bench/fib.lox bench/method_calls.lox bench/small_functions.lox bench/loop_invariants.lox bench/deep_recursion.lox"}
+
+measure() {
+    local script=$1
+    shift
+    local total=0
+    for ((i = 0; i < RUNS; i++)); do
+        local start=$(date +%s%N)
+        "$@" -jar "$JAR" "$script" < /dev/null > /dev/null 2>&1 || true
+        local end=$(date +%s%N)
+        total=$((total + end - start))
+    done
+    echo $((total / RUNS / 1000000))
+}
+
+printf '%-28s %10s %10s\n' script recursive heap
+for script in $SCRIPTS; do
+    recursive=$(measure "$script" "$JAVA")
+    heap=$(measure "$script" "$JAVA" -Dlox.stack=heap)
+    printf '%-28s %7d ms %7d ms\n' "$(basename "$script")" "$recursive" "$heap"
+done
@@ -0,0 +1,33 @@
+#!/usr/bin/env bash
+# Startup benchmark: runs bench/startup.lox with the plain JVM, with the
+# AppCDS archive and as native image, and prints the mean wall time.
+# Build first with 'make cds' and, if GraalVM is installed, 'make native'.
+set -e
+
+JAVA=${JAVA:-java}
+RUNS=${RUNS:-10}
+SCRIPT=bench/startup.lox
+JAR=build/jlox.jar
+
+measure() {
+    local name=$1
+    shift
+    local total=0
+    for ((i = 0; i < RUNS; i++)); do
+        local start=$(date +%s%N)
+        "$@" "$SCRIPT" < /dev/null > /dev/null
+        local end=$(date +%s%N)
+        total=$((total + end - start))
+    done
+    printf '%-8s %6d ms\n' "$name" $((total / RUNS / 1000000))
+}
+
+measure jvm "$JAVA" -Xshare:auto -jar "$JAR"
+if [ -f build/jlox.jsa ]; then
+    measure cds "$JAVA" -XX:SharedArchiveFile=build/jlox.jsa -jar "$JAR"
+fi
+if [ -x build/jlox ]; then
+    measure native build/jlox
+else
+    echo "native   skipped, build it with 'make native'"
+fi
@@ -0,0 +1,16 @@
+#!/usr/bin/env bash
+# Checked arithmetic against operators the TypeAnalyzer proved numeric (-Dlox.types).
+# Every script runs in its own JVM, repeated in-process by ScriptBench so the
+# times are after JIT warm-up. Build first with 'make bench-types', which also runs this.
+set -e
+
+JAVA=${JAVA:-java}
+CLASSPATH=build/classes:build/bench
+SCRIPTS=${SCRIPTS:-"bench/numeric_locals.lox bench/expressions.lox bench/fib.lox"}
+
+for script in $SCRIPTS; do
+    for types in false true; do
+        printf '%-6s' $types
+        "$JAVA" -Dlox.types=$types -cp "$CLASSPATH" lox.ScriptBench "$script"
+    done
+done
@@ -46,6 +46,66 @@ class AstPrinter implements Expr.Visitor<String>{
         return parenthesize(expr.operator.lexeme, expr.right);
     }
 
+    @Override
+    public String visitArrayExpr(Expr.Array expr) {
+        return null;
+    }
+
+    @Override
+    public String visitMapExpr(Expr.Map expr) {
+        return null;
+    }
+
+    @Override
+    public String visitIndexExpr(Expr.Index expr) {
+        return null;
+    }
+
+    @Override
+    public String visitIndexSetExpr(Expr.IndexSet expr) {
+        return null;
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return null;
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return null;
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public String visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public String visitInvokeExpr(Expr.Invoke expr) {
+        return null;
+    }
+
+    @Override
+    public String visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return null;
+    }
+
+    @Override
+    public String visitIncrementExpr(Expr.Increment expr) {
+        return null;
+    }
+
+    @Override
+    public String visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
     private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
 
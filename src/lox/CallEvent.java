@@ -0,0 +1,24 @@
+package lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event for a call of a Lox function that took longer than the threshold.
+ * The threshold can be changed in the recording settings, e.g. lox.Call#threshold=1 ms
+ */
+@Name("lox.Call")
+@Label("Lox Call")
+@Category("Lox")
+@Description("A call of a Lox function or method")
+@Threshold("10 ms")
+class CallEvent extends jdk.jfr.Event {
+    @Label("Function")
+    String function;
+
+    @Label("Line")
+    int line;
+}
@@ -0,0 +1,67 @@
+package lox;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes to a file through a FileChannel.
+ * Text is encoded straight into a direct buffer, so writing it out
+ * doesn't need another copy.
+ */
+class ChannelOutput implements OutputSink {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final boolean flushLines;
+
+    ChannelOutput(Path path, boolean flushLines) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.flushLines = flushLines;
+    }
+
+    @Override
+    public void println(CharSequence text) {
+        encode(CharBuffer.wrap(text));
+        encode(CharBuffer.wrap(System.lineSeparator()));
+        if (flushLines) flush();
+    }
+
+    private void encode(CharBuffer chars) {
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, false);
+            if (!result.isOverflow()) return;
+            drain();
+        }
+    }
+
+    @Override
+    public void flush() {
+        drain();
+    }
+
+    private void drain() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,64 @@
+package lox;
+
+import static lox.LoxNative.integer;
+
+class CollectionModule implements NativeModule {
+    @Override
+    public void register(Interpreter interpreter) {
+        interpreter.defineNative("list", () -> new LoxArray());
+        interpreter.defineNative("map", () -> new LoxMap());
+        interpreter.defineNative("array", (a, b) -> {
+            int size = integer(a, "array");
+            if (size < 0) throw new NativeError("Array size can't be negative.");
+            LoxArray array = new LoxArray(size);
+            for (int i = 0; i < size; i++) {
+                array.append(b);
+            }
+            return array;
+        });
+
+        interpreter.defineNative("len", a -> {
+            if (a instanceof String || a instanceof LoxString) return (double)((CharSequence)a).length();
+            if (a instanceof LoxArray) return (double)((LoxArray)a).size();
+            if (a instanceof LoxMap) return (double)((LoxMap)a).size();
+            throw new NativeError("Argument to 'len' must be a string, list or map.");
+        });
+        interpreter.defineNative("append", (a, b) -> {
+            array(a, "append").append(b);
+            return null;
+        });
+        interpreter.defineNative("get", (a, b) -> {
+            if (a instanceof LoxMap) return ((LoxMap)a).get(b);
+            return array(a, "get").get(integer(b, "get"));
+        });
+        interpreter.defineNative("set", (a, b, c) -> {
+            if (a instanceof LoxMap) {
+                ((LoxMap)a).put(b, c);
+            } else {
+                array(a, "set").set(integer(b, "set"), c);
+            }
+            return c;
+        });
+        interpreter.defineNative("has", (a, b) -> map(a, "has").has(b));
+        interpreter.defineNative("remove", (a, b) -> {
+            map(a, "remove").remove(b);
+            return null;
+        });
+        interpreter.defineNative("keys", a -> {
+            LoxMap map = map(a, "keys");
+            LoxArray keys = new LoxArray(map.size());
+            map.forEach((key, value) -> keys.append(key));
+            return keys;
+        });
+    }
+
+    private static LoxArray array(Object argument, String function) {
+        if (argument instanceof LoxArray) return (LoxArray)argument;
+        throw new NativeError("Argument to '" + function + "' must be a list.");
+    }
+
+    private static LoxMap map(Object argument, String function) {
+        if (argument instanceof LoxMap) return (LoxMap)argument;
+        throw new NativeError("Argument to '" + function + "' must be a map.");
+    }
+}
@@ -0,0 +1,148 @@
+package lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs scripts sent by LoxClient over a Unix domain socket, so they neither pay
+ * for JVM startup nor start over with a cold JIT.
+ * Every connection gets a virtual thread and its own Lox with fresh globals.
+ *
+ * The request is the absolute directory of the script, which its imports are
+ * relative to, in modified UTF-8, then the script source, an int length and the bytes.
+ * The response is a series of frames, each a tag byte followed by
+ * an int length and the bytes for OUT and ERR, or by the exit code for EXIT.
+ */
+class Daemon {
+    static final byte OUT = 1;
+    static final byte ERR = 2;
+    static final byte EXIT = 3;
+
+    private Daemon() {}
+
+    static void serve(Path socket) throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+        if(Files.exists(socket)) {
+            if(isListening(address)) {
+                System.err.println("A daemon is already listening on " + socket + ".");
+                System.exit(Lox.EX_USAGE);
+            }
+            // left behind by a daemon that was killed
+            Files.delete(socket);
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(address);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException ignored) {
+                }
+            }));
+            System.err.println("Listening on " + socket + ".");
+
+            while(true) {
+                SocketChannel channel = server.accept();
+                Thread.ofVirtual().name("lox-client").start(() -> handle(channel));
+            }
+        }
+    }
+
+    private static boolean isListening(UnixDomainSocketAddress address) {
+        try {
+            SocketChannel.open(address).close();
+            return true;
+        } catch (IOException error) {
+            return false;
+        }
+    }
+
+    private static void handle(SocketChannel channel) {
+        try (channel) {
+            DataInputStream request = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+            Path directory = Paths.get(request.readUTF());
+            byte[] source = new byte[request.readInt()];
+            request.readFully(source);
+
+            DataOutputStream response = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            PrintStream errors = new PrintStream(new FrameStream(response, ERR), true, Charset.defaultCharset());
+            Lox lox = new Lox(new StreamOutput(new FrameStream(response, OUT), false), errors);
+
+            int status;
+            try {
+                status = lox.runScript(new String(source, Charset.defaultCharset()), directory);
+            } catch (UncheckedIOException error) {
+                // the client went away, nobody is left to tell
+                return;
+            } catch (StackOverflowError error) {
+                // would take down the connection's thread otherwise
+                errors.println("Stack overflow.");
+                status = Lox.EX_SOFTWARE;
+            } catch (RuntimeException error) {
+                errors.println("Internal error: " + error);
+                status = Lox.EX_SOFTWARE;
+            }
+
+            synchronized (response) {
+                response.writeByte(EXIT);
+                response.writeInt(status);
+                response.flush();
+            }
+        } catch (IOException error) {
+            // the client went away before the script was read or the result written
+        }
+    }
+
+    /**
+     * Sends everything written to it as frames with one tag
+     */
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream response;
+        private final byte tag;
+
+        FrameStream(DataOutputStream response, byte tag) {
+            this.response = response;
+            this.tag = tag;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if(length == 0) return;
+            // stdout and stderr share the socket, so frames must not interleave
+            synchronized (response) {
+                response.writeByte(tag);
+                response.writeInt(length);
+                response.write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (response) {
+                response.flush();
+            }
+        }
+    }
+}
@@ -1,18 +1,29 @@
 package lox;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Environment {
+    // marks a name that wasn't defined before a block shadowed it
+    private static final Object UNDEFINED = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Object> values;
 
+    /**
+     * The globals. Spawned tasks look names up while the script still defines new ones,
+     * so the Map is concurrent. Globals always hold a cell, never null.
+     */
     Environment() {
         enclosing = null;
+        values = new ConcurrentHashMap<>();
     }
 
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        this.values = new HashMap<>();
     }
 
     /**
@@ -22,12 +33,74 @@ class Environment {
      * for better UserExperience in the REPL
      */
     void define(String name, Object value) {
+        if(enclosing == null) {
+            defineGlobal(name, value);
+            return;
+        }
         values.put(name, value);
     }
 
+    /**
+     * A redefined global keeps its cell,
+     * sites that cached the cell see the new value
+     */
+    private void defineGlobal(String name, Object value) {
+        Object slot = values.get(name);
+        if(slot instanceof Upvalue) {
+            ((Upvalue)slot).value = value;
+        } else {
+            values.put(name, new Upvalue(value));
+        }
+    }
+
+    /**
+     * The globals this Environment belongs to, the end of its chain
+     */
+    Environment root() {
+        Environment root = this;
+        while(root.enclosing != null) root = root.enclosing;
+        return root;
+    }
+
+    /**
+     * The cell of a global. Cells are never removed or replaced,
+     * so a site can cache it after the first lookup.
+     */
+    Upvalue cell(Token name) {
+        Object slot = values.get(name.lexeme);
+        if(slot instanceof Upvalue) return (Upvalue)slot;
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    /**
+     * Defines a variable that closures share by reference.
+     * The value lives in an Upvalue instead of directly in the Map.
+     * A cell created ahead by defineForward() is kept, closures already hold it.
+     */
+    void defineBoxed(String name, Object value) {
+        Object slot = values.get(name);
+        if(slot instanceof Upvalue) {
+            ((Upvalue)slot).value = value;
+        } else {
+            values.put(name, new Upvalue(value));
+        }
+    }
+
+    /**
+     * Creates the cells of the locals of a scope that closures declared
+     * earlier in the scope refer to, see Resolver.forward()
+     */
+    void defineForward(List<String> names) {
+        for(String name : names) {
+            values.put(name, new Upvalue(null));
+        }
+    }
+
     Object get(Token name) {
         if(values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+            Object value = values.get(name.lexeme);
+            if(value instanceof Upvalue) return ((Upvalue)value).value;
+            return value;
         }
 
         // Walk up the chain recursive
@@ -38,7 +111,12 @@ class Environment {
 
     void assign(Token name, Object value) {
         if(values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+            Object slot = values.get(name.lexeme);
+            if(slot instanceof Upvalue) {
+                ((Upvalue)slot).value = value;
+            } else {
+                values.put(name.lexeme, value);
+            }
             return;
         }
 
@@ -50,4 +128,88 @@ class Environment {
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
+
+    /**
+     * Adds delta to a variable holding a number, with a single walk up the chain.
+     * Returns the old value, or null if the variable doesn't hold a number.
+     */
+    Double increment(Token name, double delta) {
+        Environment environment = this;
+        while(!environment.values.containsKey(name.lexeme)) {
+            environment = environment.enclosing;
+            if(environment == null) {
+                throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+            }
+        }
+
+        Object slot = environment.values.get(name.lexeme);
+        if(slot instanceof Upvalue) {
+            Upvalue upvalue = (Upvalue)slot;
+            if(!(upvalue.value instanceof Double)) return null;
+            Double old = (Double)upvalue.value;
+            upvalue.value = old + delta;
+            return old;
+        }
+
+        if(!(slot instanceof Double)) return null;
+        environment.values.put(name.lexeme, (Double)slot + delta);
+        return (Double)slot;
+    }
+
+    /**
+     * Looks a name up without throwing, for passes that inspect the globals
+     * before the script runs. Null if the name isn't defined.
+     */
+    Object find(String name) {
+        for(Environment environment = this; environment != null; environment = environment.enclosing) {
+            if(environment.values.containsKey(name)) {
+                Object value = environment.values.get(name);
+                if(value instanceof Upvalue) return ((Upvalue)value).value;
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns what is stored for the name without unwrapping an Upvalue,
+     * so a closure can copy the value or share the cell.
+     * The Resolver makes sure that captured names are defined,
+     * a missing one is reported at the site that needed it.
+     */
+    Object getSlot(String name, Token site) {
+        Environment environment = this;
+        while(!environment.values.containsKey(name)) {
+            environment = environment.enclosing;
+            if(environment == null) {
+                throw new RuntimeError(site, "Undefined variable '" + name + "'.");
+            }
+        }
+        return environment.values.get(name);
+    }
+
+    /**
+     * Saves the slots a block without its own Environment is about to shadow
+     */
+    Object[] save(List<String> names) {
+        Object[] saved = new Object[names.size()];
+        for(int i = 0; i < saved.length; i++) {
+            String name = names.get(i);
+            saved[i] = values.containsKey(name) ? values.get(name) : UNDEFINED;
+        }
+        return saved;
+    }
+
+    /**
+     * Removes the locals of a block without its own Environment
+     * and puts back what they shadowed
+     */
+    void restore(List<String> locals, List<String> shadowed, Object[] saved) {
+        for(String name : locals) {
+            values.remove(name);
+        }
+        for(int i = 0; i < shadowed.size(); i++) {
+            if(saved[i] != UNDEFINED) values.put(shadowed.get(i), saved[i]);
+        }
+    }
 }
@@ -2,19 +2,75 @@ package lox;
 
 import java.util.List;
 
-abstract class Expr {
+abstract sealed class Expr {
 	interface Visitor<R> {
+		R visitArgumentExpr(Argument expr);
 		R visitAssignExpr(Assign expr);
 		R visitBinaryExpr(Binary expr);
 		R visitCallExpr(Call expr);
+		R visitGetExpr(Get expr);
+		R visitCompareConstantExpr(CompareConstant expr);
 		R visitGroupingExpr(Grouping expr);
+		R visitIncrementExpr(Increment expr);
+		R visitInvokeExpr(Invoke expr);
 		R visitLiteralExpr(Literal expr);
 		R visitVariableExpr(Variable expr);
 		R visitLogicalExpr(Logical expr);
+		R visitSetExpr(Set expr);
+		R visitSuperExpr(Super expr);
+		R visitThisExpr(This expr);
 		R visitUnaryExpr(Unary expr);
+		R visitArrayExpr(Array expr);
+		R visitMapExpr(Map expr);
+		R visitIndexExpr(Index expr);
+		R visitIndexSetExpr(IndexSet expr);
 	}
-	static class Assign extends Expr {
+
+	static final int ARGUMENT = 0;
+	static final int ASSIGN = 1;
+	static final int BINARY = 2;
+	static final int CALL = 3;
+	static final int GET = 4;
+	static final int COMPARE_CONSTANT = 5;
+	static final int GROUPING = 6;
+	static final int INCREMENT = 7;
+	static final int INVOKE = 8;
+	static final int LITERAL = 9;
+	static final int VARIABLE = 10;
+	static final int LOGICAL = 11;
+	static final int SET = 12;
+	static final int SUPER = 13;
+	static final int THIS = 14;
+	static final int UNARY = 15;
+	static final int ARRAY = 16;
+	static final int MAP = 17;
+	static final int INDEX = 18;
+	static final int INDEX_SET = 19;
+
+	final int kind;
+
+	private Expr(int kind) {
+		this.kind = kind;
+	}
+
+	static final class Argument extends Expr {
+		Argument(Token name, int index) {
+			super(ARGUMENT);
+			this.name = name;
+			this.index = index;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitArgumentExpr(this);
+		}
+
+		final Token name;
+		final int index;
+	}
+	static final class Assign extends Expr {
 		Assign(Token name, Expr value) {
+			super(ASSIGN);
 			this.name = name;
 			this.value = value;
 		}
@@ -26,9 +82,12 @@ abstract class Expr {
 
 		final Token name;
 		final Expr value;
+		boolean global;
+		Upvalue cell;
 	}
-	static class Binary extends Expr {
+	static final class Binary extends Expr {
 		Binary(Expr left, Token operator, Expr right) {
+			super(BINARY);
 			this.left = left;
 			this.operator = operator;
 			this.right = right;
@@ -42,9 +101,13 @@ abstract class Expr {
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		int invariant = -1;
+		FlatExpr flat;
+		boolean numeric;
 	}
-	static class Call extends Expr {
+	static final class Call extends Expr {
 		Call(Expr callee, Token paren, List<Expr> arguments) {
+			super(CALL);
 			this.callee = callee;
 			this.paren = paren;
 			this.arguments = arguments;
@@ -58,9 +121,48 @@ abstract class Expr {
 		final Expr callee;
 		final Token paren;
 		final List<Expr> arguments;
+		int invariant = -1;
+		Stmt.Function target;
+		Expr inlined;
 	}
-	static class Grouping extends Expr {
+	static final class Get extends Expr {
+		Get(Expr object, Token name) {
+			super(GET);
+			this.object = object;
+			this.name = name;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitGetExpr(this);
+		}
+
+		final Expr object;
+		final Token name;
+		PropertyCache cache = new PropertyCache();
+	}
+	static final class CompareConstant extends Expr {
+		CompareConstant(Token name, Token operator, double constant) {
+			super(COMPARE_CONSTANT);
+			this.name = name;
+			this.operator = operator;
+			this.constant = constant;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitCompareConstantExpr(this);
+		}
+
+		final Token name;
+		final Token operator;
+		final double constant;
+		boolean global;
+		Upvalue cell;
+	}
+	static final class Grouping extends Expr {
 		Grouping(Expr expression) {
+			super(GROUPING);
 			this.expression = expression;
 		}
 
@@ -71,8 +173,52 @@ abstract class Expr {
 
 		final Expr expression;
 	}
-	static class Literal extends Expr {
+	static final class Increment extends Expr {
+		Increment(Token name, Token operator, double delta, boolean prefix, Expr fallback) {
+			super(INCREMENT);
+			this.name = name;
+			this.operator = operator;
+			this.delta = delta;
+			this.prefix = prefix;
+			this.fallback = fallback;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitIncrementExpr(this);
+		}
+
+		final Token name;
+		final Token operator;
+		final double delta;
+		final boolean prefix;
+		final Expr fallback;
+		boolean global;
+		Upvalue cell;
+	}
+	static final class Invoke extends Expr {
+		Invoke(Expr object, Token name, Token paren, List<Expr> arguments) {
+			super(INVOKE);
+			this.object = object;
+			this.name = name;
+			this.paren = paren;
+			this.arguments = arguments;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitInvokeExpr(this);
+		}
+
+		final Expr object;
+		final Token name;
+		final Token paren;
+		final List<Expr> arguments;
+		PropertyCache cache = new PropertyCache();
+	}
+	static final class Literal extends Expr {
 		Literal(Object value) {
+			super(LITERAL);
 			this.value = value;
 		}
 
@@ -83,8 +229,9 @@ abstract class Expr {
 
 		final Object value;
 	}
-	static class Variable extends Expr {
+	static final class Variable extends Expr {
 		Variable(Token name) {
+			super(VARIABLE);
 			this.name = name;
 		}
 
@@ -94,9 +241,12 @@ abstract class Expr {
 		}
 
 		final Token name;
+		boolean global;
+		Upvalue cell;
 	}
-	static class Logical extends Expr {
+	static final class Logical extends Expr {
 		Logical(Expr left, Token operator, Expr right) {
+			super(LOGICAL);
 			this.left = left;
 			this.operator = operator;
 			this.right = right;
@@ -110,9 +260,57 @@ abstract class Expr {
 		final Expr left;
 		final Token operator;
 		final Expr right;
+		FlatExpr flat;
+	}
+	static final class Set extends Expr {
+		Set(Expr object, Token name, Expr value) {
+			super(SET);
+			this.object = object;
+			this.name = name;
+			this.value = value;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitSetExpr(this);
+		}
+
+		final Expr object;
+		final Token name;
+		final Expr value;
+		PropertyCache cache = new PropertyCache();
+	}
+	static final class Super extends Expr {
+		Super(Token keyword, Token method) {
+			super(SUPER);
+			this.keyword = keyword;
+			this.method = method;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitSuperExpr(this);
+		}
+
+		final Token keyword;
+		final Token method;
+	}
+	static final class This extends Expr {
+		This(Token keyword) {
+			super(THIS);
+			this.keyword = keyword;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitThisExpr(this);
+		}
+
+		final Token keyword;
 	}
-	static class Unary extends Expr {
+	static final class Unary extends Expr {
 		Unary(Token operator, Expr right) {
+			super(UNARY);
 			this.operator = operator;
 			this.right = right;
 		}
@@ -124,6 +322,77 @@ abstract class Expr {
 
 		final Token operator;
 		final Expr right;
+		int invariant = -1;
+		FlatExpr flat;
+		boolean numeric;
+	}
+	static final class Array extends Expr {
+		Array(Token bracket, List<Expr> elements) {
+			super(ARRAY);
+			this.bracket = bracket;
+			this.elements = elements;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitArrayExpr(this);
+		}
+
+		final Token bracket;
+		final List<Expr> elements;
+	}
+	static final class Map extends Expr {
+		Map(Token brace, List<Expr> keys, List<Expr> values) {
+			super(MAP);
+			this.brace = brace;
+			this.keys = keys;
+			this.values = values;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitMapExpr(this);
+		}
+
+		final Token brace;
+		final List<Expr> keys;
+		final List<Expr> values;
+	}
+	static final class Index extends Expr {
+		Index(Expr object, Token bracket, Expr index) {
+			super(INDEX);
+			this.object = object;
+			this.bracket = bracket;
+			this.index = index;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitIndexExpr(this);
+		}
+
+		final Expr object;
+		final Token bracket;
+		final Expr index;
+	}
+	static final class IndexSet extends Expr {
+		IndexSet(Expr object, Token bracket, Expr index, Expr value) {
+			super(INDEX_SET);
+			this.object = object;
+			this.bracket = bracket;
+			this.index = index;
+			this.value = value;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitIndexSetExpr(this);
+		}
+
+		final Expr object;
+		final Token bracket;
+		final Expr index;
+		final Expr value;
 	}
 
 	abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,182 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An expression tree laid out in arrays instead of linked node objects.
+ * The nodes are in post-order, so a node's children are right in front of it and
+ * evaluating is one loop over the arrays with a small value stack, no recursion
+ * and no accept() per node. kinds holds the Expr kind ordinal of a node,
+ * operands an index into constants: the value of a literal or the node itself,
+ * which the Interpreter needs for the operator and its error messages.
+ * The test of 'and' and 'or' comes between its operands and holds the index
+ * to jump to when the left operand decides.
+ *
+ * Nodes the layout doesn't cover, like calls and property access, are
+ * TREE nodes, the Interpreter evaluates them as usual. Built by the Flattener.
+ */
+class FlatExpr {
+    static final int TREE = -1;
+    static final int AND = -2;
+    static final int OR = -3;
+
+    private final int[] kinds;
+    private final int[] operands;
+    // the operator of BINARY nodes, for arithmetic on numbers without going to the node
+    private final TokenType[] operators;
+    private final Object[] constants;
+    private final int stackSize;
+
+    private FlatExpr(int[] kinds, int[] operands, TokenType[] operators, Object[] constants, int stackSize) {
+        this.kinds = kinds;
+        this.operands = operands;
+        this.operators = operators;
+        this.constants = constants;
+        this.stackSize = stackSize;
+    }
+
+    int size() {
+        return kinds.length;
+    }
+
+    Object evaluate(Interpreter interpreter) {
+        Object[] stack = new Object[stackSize];
+        int top = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case Expr.LITERAL:
+                    stack[top++] = constants[operands[i]];
+                    break;
+                case Expr.VARIABLE:
+                    stack[top++] = interpreter.visitVariableExpr((Expr.Variable)constants[operands[i]]);
+                    break;
+                case Expr.COMPARE_CONSTANT:
+                    stack[top++] = interpreter.visitCompareConstantExpr(
+                            (Expr.CompareConstant)constants[operands[i]]);
+                    break;
+                case Expr.UNARY:
+                    stack[top - 1] = interpreter.unary((Expr.Unary)constants[operands[i]], stack[top - 1]);
+                    break;
+                case Expr.BINARY: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    Object value = null;
+                    if (left instanceof Double && right instanceof Double) {
+                        value = arithmetic(operators[i], (double)left, (double)right);
+                    }
+                    // strings, errors and the rest go through the Interpreter
+                    if (value == null) {
+                        value = interpreter.binary((Expr.Binary)constants[operands[i]], left, right);
+                    }
+                    stack[top - 1] = value;
+                    break;
+                }
+                case AND:
+                    // the left value stays the result if it decides
+                    if (!interpreter.isTruthy(stack[top - 1])) {
+                        i = operands[i] - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                case OR:
+                    if (interpreter.isTruthy(stack[top - 1])) {
+                        i = operands[i] - 1;
+                    } else {
+                        top--;
+                    }
+                    break;
+                default:
+                    stack[top++] = interpreter.evaluate((Expr)constants[operands[i]]);
+            }
+        }
+        return stack[0];
+    }
+
+    /**
+     * Returns null for the operators the Interpreter has to handle,
+     * division needs its check for zero
+     */
+    private static Object arithmetic(TokenType operator, double left, double right) {
+        switch (operator) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            default: return null;
+        }
+    }
+
+    /**
+     * Appends nodes in post-order and keeps track of the stack depth
+     */
+    static class Builder {
+        private int[] kinds = new int[16];
+        private int[] operands = new int[16];
+        private TokenType[] operators = new TokenType[16];
+        private final List<Object> constants = new ArrayList<>();
+        private int count = 0;
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        void leaf(int kind, Object constant) {
+            add(kind, constant(constant));
+            push(1);
+        }
+
+        void unary(Expr.Unary expr) {
+            add(Expr.UNARY, constant(expr));
+        }
+
+        void binary(Expr.Binary expr) {
+            add(Expr.BINARY, constant(expr));
+            operators[count - 1] = expr.operator.type;
+            push(-1);
+        }
+
+        /**
+         * Adds the test of a logical operator, its jump target is set by
+         * endTest() once the right operand is added
+         */
+        int test(Expr.Logical expr) {
+            add(expr.operator.type == TokenType.OR ? OR : AND, -1);
+            push(-1);
+            return count - 1;
+        }
+
+        void endTest(int test) {
+            operands[test] = count;
+        }
+
+        FlatExpr build() {
+            return new FlatExpr(Arrays.copyOf(kinds, count), Arrays.copyOf(operands, count),
+                    Arrays.copyOf(operators, count), constants.toArray(), maxDepth);
+        }
+
+        private int constant(Object constant) {
+            constants.add(constant);
+            return constants.size() - 1;
+        }
+
+        private void add(int kind, int operand) {
+            if (count == kinds.length) {
+                kinds = Arrays.copyOf(kinds, count * 2);
+                operands = Arrays.copyOf(operands, count * 2);
+                operators = Arrays.copyOf(operators, count * 2);
+            }
+            kinds[count] = kind;
+            operands[count] = operand;
+            count++;
+        }
+
+        private void push(int change) {
+            depth += change;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Static pass after the LoopOptimizer, run with -Dlox.ast=flat.
+ * Lays out the operator trees of a script as FlatExpr: a tree of Binary, Unary
+ * and Logical nodes over literals and variables becomes one FlatExpr, attached
+ * to its root. Anything else in the tree, and hoisted invariants which keep their
+ * cached value, are left to the Interpreter, subtrees of those are flattened on
+ * their own. Trees smaller than minSize nodes aren't worth it.
+ */
+class Flattener implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final int minSize;
+
+    Flattener(int minSize) {
+        this.minSize = minSize;
+    }
+
+    void flatten(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            flatten(statement);
+        }
+    }
+
+    private void flatten(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void flatten(Expr expr) {
+        expr.accept(this);
+    }
+
+    /**
+     * Flattens the tree under an operator node, returns false if it's too small
+     */
+    private boolean root(Expr expr) {
+        FlatExpr.Builder builder = new FlatExpr.Builder();
+        List<Expr> trees = new ArrayList<>();
+        emit(builder, expr, trees);
+        FlatExpr flat = builder.build();
+        if (flat.size() < minSize) return false;
+
+        if (expr instanceof Expr.Binary) {
+            ((Expr.Binary)expr).flat = flat;
+        } else if (expr instanceof Expr.Unary) {
+            ((Expr.Unary)expr).flat = flat;
+        } else {
+            ((Expr.Logical)expr).flat = flat;
+        }
+        for (Expr tree : trees) {
+            flatten(tree);
+        }
+        return true;
+    }
+
+    private void emit(FlatExpr.Builder builder, Expr expr, List<Expr> trees) {
+        if (expr instanceof Expr.Grouping) {
+            emit(builder, ((Expr.Grouping)expr).expression, trees);
+        } else if (expr instanceof Expr.Literal) {
+            builder.leaf(Expr.LITERAL, ((Expr.Literal)expr).value);
+        } else if (expr instanceof Expr.Variable) {
+            builder.leaf(Expr.VARIABLE, expr);
+        } else if (expr instanceof Expr.CompareConstant) {
+            builder.leaf(Expr.COMPARE_CONSTANT, expr);
+        } else if (expr instanceof Expr.Binary && ((Expr.Binary)expr).invariant < 0) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            emit(builder, binary.left, trees);
+            emit(builder, binary.right, trees);
+            builder.binary(binary);
+        } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).invariant < 0) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            emit(builder, unary.right, trees);
+            builder.unary(unary);
+        } else if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            emit(builder, logical.left, trees);
+            int test = builder.test(logical);
+            emit(builder, logical.right, trees);
+            builder.endTest(test);
+        } else {
+            builder.leaf(FlatExpr.TREE, expr);
+            trees.add(expr);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        flatten(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.methods) {
+            flatten(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        flatten(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        flatten(stmt.condition);
+        flatten(stmt.body);
+        if (stmt.increment != null) flatten(stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        flatten(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        flatten(stmt.condition);
+        flatten(stmt.thenBranch);
+        if (stmt.elseBranch != null) flatten(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) flatten(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) flatten(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        flatten(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        flatten(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        flatten(stmt.condition);
+        flatten(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        flatten(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.invariant < 0 && root(expr)) return null;
+        flatten(expr.left);
+        flatten(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        flatten(expr.callee);
+        for (Expr argument : expr.arguments) {
+            flatten(argument);
+        }
+        if (expr.inlined != null) flatten(expr.inlined);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        flatten(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        flatten(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        // the fallback is only 'i + constant'
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        flatten(expr.object);
+        for (Expr argument : expr.arguments) {
+            flatten(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        if (root(expr)) return null;
+        flatten(expr.left);
+        flatten(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        flatten(expr.object);
+        flatten(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.invariant < 0 && root(expr)) return null;
+        flatten(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for (Expr element : expr.elements) {
+            flatten(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitMapExpr(Expr.Map expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            flatten(expr.keys.get(i));
+            flatten(expr.values.get(i));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        flatten(expr.object);
+        flatten(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        flatten(expr.object);
+        flatten(expr.index);
+        flatten(expr.value);
+        return null;
+    }
+}
@@ -0,0 +1,51 @@
+package lox;
+
+import java.util.List;
+
+/**
+ * hasNext(generator) tells if the generator yields another value,
+ * next(generator) returns it, see LoxGenerator.
+ * They take the generic path, resuming the body needs the calling Interpreter.
+ */
+class GeneratorModule implements NativeModule {
+    @Override
+    public void register(Interpreter interpreter) {
+        interpreter.defineNative("hasNext", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return generator(arguments.get(0), "hasNext").hasNext(interpreter);
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+        interpreter.defineNative("next", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return generator(arguments.get(0), "next").next(interpreter);
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxGenerator generator(Object argument, String function) {
+        if (argument instanceof LoxGenerator) return (LoxGenerator)argument;
+        throw new NativeError("Argument to '" + function + "' must be a generator.");
+    }
+}
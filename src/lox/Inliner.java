@@ -0,0 +1,524 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static pass after the Resolver that inlines small functions.
+ * A function whose body is a single 'return expression;' gets a copy of that
+ * expression attached to its call sites, with the parameters replaced by
+ * Expr.Argument. The Interpreter evaluates the copy instead of calling, so no
+ * argument List, Environment or Return exception is needed.
+ * Only functions that are declared once, never assigned, only ever called
+ * (never passed around), not recursive and without upvalues qualify.
+ * The Interpreter still checks that the callee is the inlined function,
+ * a later REPL line may declare another one with the same name.
+ */
+class Inliner implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    /**
+     * Names declared in a block or function, the innermost scope first
+     */
+    private static class Scope {
+        final Scope enclosing;
+        final Set<String> names = new HashSet<>();
+
+        Scope(Scope enclosing) {
+            this.enclosing = enclosing;
+        }
+
+        boolean declares(String name) {
+            for (Scope scope = this; scope != null; scope = scope.enclosing) {
+                if (scope.names.contains(name)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A call of a name, with the scopes around it.
+     * The scopes may gain names declared after the call,
+     * which only makes the shadowing check stricter.
+     */
+    private static class Site {
+        final Expr.Call call;
+        final Scope scope;
+
+        Site(Expr.Call call, Scope scope) {
+            this.call = call;
+            this.scope = scope;
+        }
+    }
+
+    private final int maxSize;
+    private final boolean debug;
+
+    private final Map<String, Stmt.Function> functions = new HashMap<>();
+    // how often a name is declared or assigned anywhere in the script
+    private final Map<String, Integer> bindings = new HashMap<>();
+    // names used as a value instead of being called
+    private final Set<String> escaping = new HashSet<>();
+    private final List<Site> sites = new ArrayList<>();
+    // null at the top level, globals aren't tracked
+    private Scope scope = null;
+
+    Inliner(int maxSize, boolean debug) {
+        this.maxSize = maxSize;
+        this.debug = debug;
+    }
+
+    /**
+     * The sites are only decided once the whole script is seen,
+     * a later assignment may still rebind the function
+     */
+    void inline(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            inline(statement);
+        }
+
+        for (Site site : sites) {
+            String name = ((Expr.Variable)site.call.callee).name.lexeme;
+            Stmt.Function function = functions.get(name);
+            // natives, classes and anything that isn't a function declaration
+            if (function == null) continue;
+
+            String reason = check(function, site);
+            if (reason == null) {
+                site.call.target = function;
+                site.call.inlined = copy(((Stmt.Return)function.body.get(0)).value, function.params);
+            }
+            if (debug) {
+                System.err.println("[inline] line " + site.call.paren.line + ": " + name
+                        + (reason == null ? " inlined" : " not inlined, " + reason));
+            }
+        }
+    }
+
+    /**
+     * Returns why the function can't be inlined at the site, null if it can
+     */
+    private String check(Stmt.Function function, Site site) {
+        String name = function.name.lexeme;
+        if (bindings.get(name) != 1) return "the name is rebound";
+        if (escaping.contains(name)) return "the function is used as a value";
+        if (!function.upvalues.isEmpty()) return "it captures variables";
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)
+                || ((Stmt.Return)function.body.get(0)).value == null) {
+            return "the body isn't a single return";
+        }
+        if (site.call.arguments.size() != function.params.size()) return "wrong number of arguments";
+
+        Expr body = ((Stmt.Return)function.body.get(0)).value;
+        int size = size(body);
+        if (size < 0) return "the body has an expression that isn't supported";
+        if (size > maxSize) return "the body is too large (" + size + " nodes)";
+
+        Set<String> free = new HashSet<>();
+        freeNames(body, function.params, free);
+        if (free.contains(name)) return "it's recursive";
+        for (String global : free) {
+            if (site.scope != null && site.scope.declares(global)) {
+                return "'" + global + "' is shadowed at the call";
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scope = new Scope(scope);
+        for (Stmt statement : stmt.statements) {
+            inline(statement);
+        }
+        scope = scope.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name);
+        if (stmt.superclass != null) inline(stmt.superclass);
+        for (Stmt.Function method : stmt.methods) {
+            inlineFunction(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        inline(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        inline(stmt.condition);
+        inline(stmt.body);
+        if (stmt.increment != null) inline(stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        functions.put(stmt.name.lexeme, stmt);
+        inlineFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        inline(stmt.condition);
+        inline(stmt.thenBranch);
+        if (stmt.elseBranch != null) inline(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name);
+        if (stmt.initializer != null) inline(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) inline(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        inline(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        declare(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        inline(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        inline(stmt.condition);
+        inline(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        inline(expr.value);
+        bind(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        inline(expr.left);
+        inline(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Variable) {
+            sites.add(new Site(expr, scope));
+        } else {
+            inline(expr.callee);
+        }
+        for (Expr argument : expr.arguments) {
+            inline(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        inline(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        escaping.add(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        inline(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        bind(expr.name);
+        if (expr.fallback != null) inline(expr.fallback);
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        inline(expr.object);
+        for (Expr argument : expr.arguments) {
+            inline(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        escaping.add(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        inline(expr.left);
+        inline(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        inline(expr.value);
+        inline(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        inline(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for (Expr element : expr.elements) {
+            inline(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitMapExpr(Expr.Map expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            inline(expr.keys.get(i));
+            inline(expr.values.get(i));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        inline(expr.object);
+        inline(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        inline(expr.object);
+        inline(expr.index);
+        inline(expr.value);
+        return null;
+    }
+
+    private void inline(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void inline(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void inlineFunction(Stmt.Function function) {
+        scope = new Scope(scope);
+        for (Token param : function.params) {
+            declare(param);
+        }
+        for (Stmt statement : function.body) {
+            inline(statement);
+        }
+        scope = scope.enclosing;
+    }
+
+    private void declare(Token name) {
+        bind(name);
+        if (scope != null) scope.names.add(name.lexeme);
+    }
+
+    private void bind(Token name) {
+        bindings.merge(name.lexeme, 1, Integer::sum);
+    }
+
+    /**
+     * Number of nodes of a body, -1 if it has a node the copy doesn't support
+     */
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable
+                || expr instanceof Expr.CompareConstant) {
+            return 1;
+        }
+        if (expr instanceof Expr.Grouping) return add(1, size(((Expr.Grouping)expr).expression));
+        if (expr instanceof Expr.Unary) return add(1, size(((Expr.Unary)expr).right));
+        if (expr instanceof Expr.Get) return add(1, size(((Expr.Get)expr).object));
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return add(1 + size(binary.left), size(binary.right));
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return add(1 + size(logical.left), size(logical.right));
+        }
+        if (expr instanceof Expr.Index) {
+            Expr.Index index = (Expr.Index)expr;
+            return add(1 + size(index.object), size(index.index));
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            int size = add(1, size(call.callee));
+            for (Expr argument : call.arguments) {
+                size = add(size, size(argument));
+            }
+            return size;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds sizes, -1 stays -1
+     */
+    private static int add(int size, int other) {
+        return size <= 0 || other < 0 ? -1 : size + other;
+    }
+
+    /**
+     * Names the body reads besides the parameters, the call site has to see the same ones
+     */
+    private static void freeNames(Expr expr, List<Token> params, Set<String> free) {
+        if (expr instanceof Expr.Variable) {
+            String name = ((Expr.Variable)expr).name.lexeme;
+            if (parameter(params, name) < 0) free.add(name);
+        } else if (expr instanceof Expr.CompareConstant) {
+            String name = ((Expr.CompareConstant)expr).name.lexeme;
+            if (parameter(params, name) < 0) free.add(name);
+        } else if (expr instanceof Expr.Grouping) {
+            freeNames(((Expr.Grouping)expr).expression, params, free);
+        } else if (expr instanceof Expr.Unary) {
+            freeNames(((Expr.Unary)expr).right, params, free);
+        } else if (expr instanceof Expr.Get) {
+            freeNames(((Expr.Get)expr).object, params, free);
+        } else if (expr instanceof Expr.Binary) {
+            freeNames(((Expr.Binary)expr).left, params, free);
+            freeNames(((Expr.Binary)expr).right, params, free);
+        } else if (expr instanceof Expr.Logical) {
+            freeNames(((Expr.Logical)expr).left, params, free);
+            freeNames(((Expr.Logical)expr).right, params, free);
+        } else if (expr instanceof Expr.Index) {
+            freeNames(((Expr.Index)expr).object, params, free);
+            freeNames(((Expr.Index)expr).index, params, free);
+        } else if (expr instanceof Expr.Call) {
+            freeNames(((Expr.Call)expr).callee, params, free);
+            for (Expr argument : ((Expr.Call)expr).arguments) {
+                freeNames(argument, params, free);
+            }
+        }
+    }
+
+    /**
+     * Copies a body for one call site. Nodes with caches are new for every site,
+     * parameters become Expr.Argument.
+     */
+    private static Expr copy(Expr expr, List<Token> params) {
+        if (expr instanceof Expr.Literal) return expr;
+        if (expr instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)expr).name;
+            int index = parameter(params, name.lexeme);
+            if (index >= 0) return new Expr.Argument(name, index);
+            // the body has no upvalues, so every other name is a global
+            Expr.Variable variable = new Expr.Variable(name);
+            variable.global = true;
+            return variable;
+        }
+        if (expr instanceof Expr.CompareConstant) {
+            Expr.CompareConstant compare = (Expr.CompareConstant)expr;
+            int index = parameter(params, compare.name.lexeme);
+            if (index < 0) {
+                Expr.CompareConstant copy = new Expr.CompareConstant(compare.name, compare.operator, compare.constant);
+                copy.global = true;
+                return copy;
+            }
+            return new Expr.Binary(new Expr.Argument(compare.name, index), compare.operator,
+                    new Expr.Literal(compare.constant));
+        }
+        if (expr instanceof Expr.Grouping) {
+            return new Expr.Grouping(copy(((Expr.Grouping)expr).expression, params));
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return new Expr.Unary(unary.operator, copy(unary.right, params));
+        }
+        if (expr instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr;
+            return new Expr.Get(copy(get.object, params), get.name);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return new Expr.Binary(copy(binary.left, params), binary.operator, copy(binary.right, params));
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return new Expr.Logical(copy(logical.left, params), logical.operator, copy(logical.right, params));
+        }
+        if (expr instanceof Expr.Index) {
+            Expr.Index index = (Expr.Index)expr;
+            return new Expr.Index(copy(index.object, params), index.bracket, copy(index.index, params));
+        }
+
+        Expr.Call call = (Expr.Call)expr;
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : call.arguments) {
+            arguments.add(copy(argument, params));
+        }
+        return new Expr.Call(copy(call.callee, params), call.paren, arguments);
+    }
+
+    private static int parameter(List<Token> params, String name) {
+        for (int i = 0; i < params.size(); i++) {
+            if (params.get(i).lexeme.equals(name)) return i;
+        }
+        return -1;
+    }
+}
@@ -1,50 +1,246 @@
 package lox;
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
+    final Environment globals;
+    // the fields below are also driven by the StackMachine
+    Environment environment;
+    // locked from the first parallel task on, see synchronizeOutput()
+    private OutputSink output;
+    // reused by print and concatenation to format values
+    private final StringBuilder text = new StringBuilder();
+
+    // arguments of the innermost inlined call, see Inliner
+    Object[] arguments = null;
+    // values of the invariants of the innermost running loop, see LoopOptimizer
+    Object[] invariants = null;
+    static final Object NOT_EVALUATED = new Object();
+
+    final Metrics metrics = new Metrics();
+    // -Dlox.dispatch=kind or type evaluates nodes through a switch instead of accept()
+    private static final boolean KIND_DISPATCH = "kind".equals(System.getProperty("lox.dispatch"));
+    private static final boolean TYPE_DISPATCH = "type".equals(System.getProperty("lox.dispatch"));
+    // -Dlox.stack=heap runs scripts on an explicit stack instead of the Java one
+    private final StackMachine machine;
+    // set for the Interpreters of parallel tasks, see ParallelModule
+    final boolean parallel;
+    // the modules of the script and the modules it imports, each loaded once
+    final ModuleLoader modules;
+    // import paths are relative to it, the directory of the script or module
+    Path directory;
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
+        this(new StreamOutput(new FileOutputStream(FileDescriptor.out), false));
+    }
+
+    Interpreter(OutputSink output) {
+        this(output, new ModuleLoader(), Paths.get(""));
+    }
+
+    /**
+     * Also the Interpreter of a module, whose globals are the module's namespace, see LoxModule
+     */
+    Interpreter(OutputSink output, ModuleLoader modules, Path directory) {
+        this.globals = new Environment();
+        this.environment = globals;
+        this.output = output;
+        this.modules = modules;
+        this.directory = directory;
+        this.machine = "heap".equals(System.getProperty("lox.stack"))
+                ? new StackMachine(this, StackMachine.maxDepth())
+                : null;
+        this.parallel = false;
+
+        defineNative("clock", () -> (double)System.currentTimeMillis() / 1000.0);
+
+        install(new MathModule());
+        install(new StringModule());
+        install(new CollectionModule());
+        install(new ParallelModule());
+        install(new TaskModule());
+        install(new GeneratorModule());
+    }
+
+    /**
+     * An Interpreter for a parallel task, which calls functions of the parent on another thread.
+     * It shares the globals and the output, everything it changes while running is its own.
+     * Its counters are added to the parent's when the task is done.
+     */
+    Interpreter(Interpreter parent) {
+        this.globals = parent.globals;
+        this.environment = globals;
+        // the parent called synchronizeOutput() before starting the task
+        this.output = parent.output;
+        this.machine = null;
+        this.parallel = true;
+        this.modules = parent.modules;
+        this.directory = parent.directory;
+    }
+
+    /**
+     * Registers the natives of a module as globals
+     */
+    void install(NativeModule module) {
+        module.register(this);
+    }
+
+    void defineNative(String name, LoxNative.Fn0 function) {
+        globals.define(name, LoxNative.of(function));
+    }
+
+    void defineNative(String name, LoxNative.Fn1 function) {
+        globals.define(name, LoxNative.of(function));
+    }
+
+    void defineNative(String name, LoxNative.Fn2 function) {
+        globals.define(name, LoxNative.of(function));
+    }
+
+    void defineNative(String name, LoxNative.Fn3 function) {
+        globals.define(name, LoxNative.of(function));
+    }
+
+    /**
+     * Natives without side effects whose result only depends on the arguments
+     */
+    void definePureNative(String name, LoxNative.Fn1 function) {
+        globals.define(name, LoxNative.of(function).pure());
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; }
-        });
+    void definePureNative(String name, LoxNative.Fn2 function) {
+        globals.define(name, LoxNative.of(function).pure());
+    }
+
+    void definePureNative(String name, LoxNative.Fn3 function) {
+        globals.define(name, LoxNative.of(function).pure());
+    }
+
+    /**
+     * For natives that need the generic path, e.g. more than three parameters
+     */
+    void defineNative(String name, LoxCallable function) {
+        globals.define(name, function);
     }
 
     void interpret(List<Stmt> statements) {
         try{
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            run(statements);
         }catch (RuntimeError error) {
+            // print what the script wrote so far before the error
+            flush();
+            metrics.runtimeError(error);
             Lox.runtimeError(error);
         }
     }
 
+    private void run(List<Stmt> statements) {
+        if (machine != null) {
+            machine.execute(statements);
+            return;
+        }
+        for (Stmt statement : statements) {
+            execute(statement);
+        }
+    }
+
+    /**
+     * The Interpreter for a module this one imports, see ModuleLoader
+     */
+    Interpreter module(Path directory) {
+        return new Interpreter(output, modules, directory);
+    }
+
+    /**
+     * Runs the top-level code of a module on the module's Interpreter.
+     * It prints through this Interpreter's output, a runtime error
+     * ends the code that read the module.
+     */
+    void evaluateModule(Interpreter module, List<Stmt> statements) {
+        module.output = output;
+        try {
+            module.run(statements);
+        } finally {
+            metrics.add(module.metrics);
+        }
+    }
+
+    /**
+     * Called before starting parallel tasks, which print through the same output.
+     * Spawned tasks may still print while the script goes on,
+     * so from then on the script's own prints take the lock as well.
+     */
+    void synchronizeOutput() {
+        if (!(output instanceof SynchronizedOutput)) output = new SynchronizedOutput(output);
+    }
+
+    /**
+     * Print statements are buffered, this writes them out
+     */
+    void flush() {
+        output.flush();
+    }
+
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
+        return assign(expr, evaluate(expr.value));
+    }
+
+    Object assign(Expr.Assign expr, Object value) {
+        if (expr.global) {
+            if (expr.cell == null) expr.cell = namespace().cell(expr.name);
+            expr.cell.value = value;
+            return value;
+        }
         environment.assign(expr.name, value);
         return value;
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.flat != null) return expr.flat.evaluate(this);
+        if (expr.invariant >= 0) {
+            Object value = invariants[expr.invariant];
+            if (value != NOT_EVALUATED) {
+                metrics.invariantsReused++;
+                return value;
+            }
+            return invariants[expr.invariant] = binary(expr);
+        }
+        return binary(expr);
+    }
+
+    private Object binary(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binary(expr, left, right);
+    }
+
+    Object binary(Expr.Binary expr, Object left, Object right) {
+        // the TypeAnalyzer proved both operands are numbers
+        if (expr.numeric) {
+            switch (expr.operator.type) {
+                case GREATER: return (double)left > (double)right;
+                case GREATER_EQUAL: return (double)left >= (double)right;
+                case LESS: return (double)left < (double)right;
+                case LESS_EQUAL: return (double)left <= (double)right;
+                case MINUS: return (double)left - (double)right;
+                case STAR: return (double)left * (double)right;
+                case PLUS: return (double)left + (double)right;
+                case SLASH:
+                    checkZeroDivision(expr.operator, right);
+                    return (double)left / (double)right;
+            }
+        }
 
         switch (expr.operator.type) {
             case GREATER:
@@ -73,8 +269,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if(left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
                 }
-                if(left instanceof String) {
-                    return left + stringify(right);
+                if(left instanceof String || left instanceof LoxString) {
+                    if(right instanceof CharSequence) return LoxString.concat(left, (CharSequence)right);
+                    return LoxString.concat(left, text(right));
                 }
                 // TODO: there is still a NullPointerException when the right operand is "nil"
                 if(left == null) {
@@ -91,26 +288,240 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        if (expr.invariant >= 0) {
+            Object value = invariants[expr.invariant];
+            if (value != NOT_EVALUATED) {
+                metrics.invariantsReused++;
+                return value;
+            }
+            return invariants[expr.invariant] = call(expr);
+        }
+        return call(expr);
+    }
+
+    private Object call(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
+        if (expr.inlined != null && callee instanceof LoxFunction
+                && ((LoxFunction)callee).isDeclaredBy(expr.target)) {
+            return callInlined(expr);
+        }
+
+        if (callee instanceof LoxNative) {
+            return callNative((LoxNative)callee, expr);
+        }
+
         List<Object> arguments = new ArrayList<>();
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
 
+        return callValue(callee, expr.paren, arguments);
+    }
+
+    /**
+     * Evaluates the copy of the body the Inliner attached to the call.
+     * The arguments are read through Expr.Argument instead of an Environment.
+     */
+    private Object callInlined(Expr.Call expr) {
+        metrics.calls++;
+        Object[] values = new Object[expr.arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(expr.arguments.get(i));
+        }
+
+        Object[] enclosing = arguments;
+        arguments = values;
+        try {
+            return evaluate(expr.inlined);
+        } finally {
+            arguments = enclosing;
+        }
+    }
+
+    @Override
+    public Object visitArgumentExpr(Expr.Argument expr) {
+        return arguments[expr.index];
+    }
+
+    Object callValue(Object callee, Token paren, List<Object> arguments) {
+        metrics.calls++;
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
                     "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
+        checkArity(paren, function, arguments.size());
+
+        try {
+            return function.call(this, arguments);
+        } catch (NativeError error) {
+            throw new RuntimeError(paren, error.getMessage());
+        }
+    }
+
+    /**
+     * obj.name(args) with a per-site cache of Shape -> method.
+     * Methods are called with 'this' in their frame, without a bound method.
+     * A field holding a function is called like any other value.
+     */
+    @Override
+    public Object visitInvokeExpr(Expr.Invoke expr) {
+        Object object = evaluate(expr.object);
+        // module.function(), the function is a global of the module
+        if (object instanceof LoxModule) {
+            Object callee = ((LoxModule)object).get(this, expr.name);
+            List<Object> arguments = new ArrayList<>(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                arguments.add(evaluate(argument));
+            }
+            return callValue(callee, expr.paren, arguments);
+        }
+
+        LoxInstance instance = instance(expr.name, object, "Only instances have properties.");
+        LoxFunction method = invokedMethod(expr, instance);
+        // a field is read before the arguments are evaluated
+        Object callee = method == null ? instance.field(instance.shape.slotOf(expr.name.lexeme)) : null;
+
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+
+        if (method == null) return callValue(callee, expr.paren, arguments);
+
+        checkArity(expr.paren, method, arguments.size());
+        metrics.calls++;
+        return method.callMethod(this, instance, arguments);
+    }
+
+    /**
+     * The method an invoke site calls, or null if the name is a field of the instance.
+     * Only a hit in the site's cache avoids hashing the name.
+     */
+    LoxFunction invokedMethod(Expr.Invoke expr, LoxInstance instance) {
+        Shape shape = instance.shape;
+        PropertyCache cache = expr.cache;
+        for (int i = 0; i < cache.count; i++) {
+            if (cache.shapes[i] == shape) return cache.methods[i];
+        }
+
+        int slot = shape.slotOf(expr.name.lexeme);
+        if (slot >= 0) {
+            cache.addField(shape, slot);
+            return null;
+        }
+
+        LoxFunction method = instance.klass.findMethod(expr.name.lexeme);
+        if (method == null) {
+            throw new RuntimeError(expr.name,
+                    "Undefined property '" + expr.name.lexeme + "'.");
+        }
+        cache.addMethod(shape, method);
+        return method;
+    }
+
+    LoxInstance instance(Token name, Object object, String message) {
+        if (!(object instanceof LoxInstance)) throw new RuntimeError(name, message);
+        return (LoxInstance)object;
+    }
+
+    /**
+     * Intrinsic path: the arguments go straight into the native,
+     * no argument List is allocated.
+     */
+    private Object callNative(LoxNative function, Expr.Call expr) {
+        metrics.calls++;
+        List<Expr> arguments = expr.arguments;
+        try {
+            switch (arguments.size()) {
+                case 0: {
+                    checkArity(expr.paren, function, 0);
+                    return function.call0();
+                }
+                case 1: {
+                    Object a = evaluate(arguments.get(0));
+                    checkArity(expr.paren, function, 1);
+                    return function.call1(a);
+                }
+                case 2: {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    checkArity(expr.paren, function, 2);
+                    return function.call2(a, b);
+                }
+                case 3: {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    Object c = evaluate(arguments.get(2));
+                    checkArity(expr.paren, function, 3);
+                    return function.call3(a, b, c);
+                }
+            }
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.paren, error.getMessage());
+        }
+
+        // No native takes more than three arguments
+        for (Expr argument : arguments) {
+            evaluate(argument);
+        }
+        checkArity(expr.paren, function, arguments.size());
+        return null;
+    }
+
+    void checkArity(Token paren, LoxCallable function, int count) {
+        if (count != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
                     function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    count + ".");
+        }
+    }
+
+    /**
+     * Superinstruction for 'variable < constant' and the other comparisons
+     */
+    @Override
+    public Object visitCompareConstantExpr(Expr.CompareConstant expr) {
+        Object value;
+        if (expr.global) {
+            if (expr.cell == null) expr.cell = namespace().cell(expr.name);
+            value = expr.cell.value;
+        } else {
+            value = environment.get(expr.name);
+        }
+        if (!(value instanceof Double)) {
+            throw new RuntimeError(expr.operator, "Both Operands must be a number.");
         }
 
-        return function.call(this, arguments);
+        double number = (double)value;
+        switch (expr.operator.type) {
+            case GREATER: return number > expr.constant;
+            case GREATER_EQUAL: return number >= expr.constant;
+            case LESS: return number < expr.constant;
+            default: return number <= expr.constant;
+        }
+    }
+
+    /**
+     * Superinstruction for i++, ++i, i--, --i and 'i = i + constant'
+     */
+    @Override
+    public Object visitIncrementExpr(Expr.Increment expr) {
+        Double old;
+        if (expr.global) {
+            if (expr.cell == null) expr.cell = namespace().cell(expr.name);
+            old = expr.cell.value instanceof Double ? (Double)expr.cell.value : null;
+            if (old != null) expr.cell.value = old + expr.delta;
+        } else {
+            old = environment.increment(expr.name, expr.delta);
+        }
+        if (old != null) return expr.prefix ? old + expr.delta : old;
+
+        // Not a number, 'i = i + constant' may still be valid, e.g. for a string
+        if (expr.fallback != null) return evaluate(expr.fallback);
+        throw new RuntimeError(expr.operator, "Operand must be a number.");
     }
 
     /**
@@ -132,11 +543,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
+        // Globals are read through the cell cached at the site,
+        // a global function call doesn't walk the Environment chain
+        if (expr.global) {
+            if (expr.cell == null) expr.cell = namespace().cell(expr.name);
+            return expr.cell.value;
+        }
         return environment.get(expr.name);
     }
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
+        if (expr.flat != null) return expr.flat.evaluate(this);
         Object left = evaluate(expr.left);
 
         if(expr.operator.type == TokenType.OR) {
@@ -150,7 +568,24 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        if (expr.flat != null) return expr.flat.evaluate(this);
+        if (expr.invariant >= 0) {
+            Object value = invariants[expr.invariant];
+            if (value != NOT_EVALUATED) {
+                metrics.invariantsReused++;
+                return value;
+            }
+            return invariants[expr.invariant] = unary(expr);
+        }
+        return unary(expr);
+    }
+
+    private Object unary(Expr.Unary expr) {
+        return unary(expr, evaluate(expr.right));
+    }
+
+    Object unary(Expr.Unary expr, Object right) {
+        if (expr.numeric) return -(double)right;
 
         switch (expr.operator.type) {
             case BANG:
@@ -162,12 +597,281 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private Object evaluate(Expr expr) {
+    /**
+     * Property reads go through the inline cache of the site.
+     * A hit is a Shape comparison and an array load.
+     */
+    @Override
+    public Object visitGetExpr(Expr.Get expr) {
+        return get(expr, evaluate(expr.object));
+    }
+
+    Object get(Expr.Get expr, Object object) {
+        if (object instanceof LoxModule) return ((LoxModule)object).get(this, expr.name);
+        LoxInstance instance = instance(expr.name, object, "Only instances have properties.");
+        Shape shape = instance.shape;
+        PropertyCache cache = expr.cache;
+        for (int i = 0; i < cache.count; i++) {
+            if (cache.shapes[i] != shape) continue;
+
+            int slot = cache.slots[i];
+            if (slot >= 0) return instance.field(slot);
+            metrics.environmentsAllocated++;
+            return cache.methods[i].bind(instance);
+        }
+
+        // Fields shadow methods
+        int slot = shape.slotOf(expr.name.lexeme);
+        if (slot >= 0) {
+            cache.addField(shape, slot);
+            return instance.field(slot);
+        }
+
+        LoxFunction method = instance.klass.findMethod(expr.name.lexeme);
+        if (method != null) {
+            cache.addMethod(shape, method);
+            metrics.environmentsAllocated++;
+            return method.bind(instance);
+        }
+
+        throw new RuntimeError(expr.name, "Undefined property '" + expr.name.lexeme + "'.");
+    }
+
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+        LoxInstance instance = instance(expr.name, evaluate(expr.object), "Only instances have fields.");
+        return set(expr, instance, evaluate(expr.value));
+    }
+
+    Object set(Expr.Set expr, LoxInstance instance, Object value) {
+        Shape shape = instance.shape;
+        PropertyCache cache = expr.cache;
+        for (int i = 0; i < cache.count; i++) {
+            if (cache.shapes[i] == shape) {
+                instance.store(cache.targets[i], cache.slots[i], value);
+                return value;
+            }
+        }
+
+        Shape target = shape;
+        int slot = shape.slotOf(expr.name.lexeme);
+        if (slot < 0) {
+            target = shape.with(expr.name.lexeme);
+            slot = target.slotOf(expr.name.lexeme);
+        }
+        cache.addStore(shape, slot, target);
+        instance.store(target, slot, value);
+        return value;
+    }
+
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        LoxClass superclass = (LoxClass)environment.get(expr.keyword);
+        LoxInstance object = (LoxInstance)environment.getSlot("this", expr.keyword);
+
+        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        if (method == null) {
+            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+        }
+        metrics.environmentsAllocated++;
+        return method.bind(object);
+    }
+
+    @Override
+    public Object visitThisExpr(Expr.This expr) {
+        return environment.get(expr.keyword);
+    }
+
+    @Override
+    public Object visitArrayExpr(Expr.Array expr) {
+        LoxArray array = new LoxArray(expr.elements.size());
+        for (Expr element : expr.elements) {
+            array.append(evaluate(element));
+        }
+        return array;
+    }
+
+    @Override
+    public Object visitMapExpr(Expr.Map expr) {
+        LoxMap map = new LoxMap();
+        for (int i = 0; i < expr.keys.size(); i++) {
+            Object key = evaluate(expr.keys.get(i));
+            Object value = evaluate(expr.values.get(i));
+            put(expr, map, key, value);
+        }
+        return map;
+    }
+
+    void put(Expr.Map expr, LoxMap map, Object key, Object value) {
+        try {
+            map.put(key, value);
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.brace, error.getMessage());
+        }
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+        return index(expr, object, index);
+    }
+
+    Object index(Expr.Index expr, Object object, Object index) {
+        try {
+            if (object instanceof LoxArray) {
+                return ((LoxArray)object).get(arrayIndex(expr.bracket, index));
+            }
+            if (object instanceof LoxMap) {
+                return ((LoxMap)object).get(index);
+            }
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.bracket, error.getMessage());
+        }
+        throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+        Object value = evaluate(expr.value);
+        return indexSet(expr, object, index, value);
+    }
+
+    Object indexSet(Expr.IndexSet expr, Object object, Object index, Object value) {
+        try {
+            if (object instanceof LoxArray) {
+                ((LoxArray)object).set(arrayIndex(expr.bracket, index), value);
+                return value;
+            }
+            if (object instanceof LoxMap) {
+                ((LoxMap)object).put(index, value);
+                return value;
+            }
+        } catch (NativeError error) {
+            throw new RuntimeError(expr.bracket, error.getMessage());
+        }
+        throw new RuntimeError(expr.bracket, "Only arrays and maps can be indexed.");
+    }
+
+    private int arrayIndex(Token bracket, Object index) {
+        if (index instanceof Double) {
+            double number = (double)index;
+            if (number == (int)number) return (int)number;
+        }
+        throw new RuntimeError(bracket, "Array index must be an integer.");
+    }
+
+    Object evaluate(Expr expr) {
+        if (KIND_DISPATCH) return switchOnKind(expr);
+        if (TYPE_DISPATCH) return switchOnType(expr);
         return expr.accept(this);
     }
 
     private void execute(Stmt statement) {
-        statement.accept(this);
+        metrics.statementsExecuted++;
+        if (KIND_DISPATCH) {
+            switchOnKind(statement);
+        } else if (TYPE_DISPATCH) {
+            switchOnType(statement);
+        } else {
+            statement.accept(this);
+        }
+    }
+
+    /**
+     * Pattern matching switch over the sealed node classes.
+     * Measured with bench/dispatch.sh it's slower than accept(), the
+     * switch tests the classes one after the other.
+     */
+    private Object switchOnType(Expr expr) {
+        return switch (expr) {
+            case Expr.Argument argument -> visitArgumentExpr(argument);
+            case Expr.Assign assign -> visitAssignExpr(assign);
+            case Expr.Binary binary -> visitBinaryExpr(binary);
+            case Expr.Call call -> visitCallExpr(call);
+            case Expr.Get get -> visitGetExpr(get);
+            case Expr.CompareConstant compare -> visitCompareConstantExpr(compare);
+            case Expr.Grouping grouping -> visitGroupingExpr(grouping);
+            case Expr.Increment increment -> visitIncrementExpr(increment);
+            case Expr.Invoke invoke -> visitInvokeExpr(invoke);
+            case Expr.Literal literal -> literal.value;
+            case Expr.Variable variable -> visitVariableExpr(variable);
+            case Expr.Logical logical -> visitLogicalExpr(logical);
+            case Expr.Set set -> visitSetExpr(set);
+            case Expr.Super superExpr -> visitSuperExpr(superExpr);
+            case Expr.This thisExpr -> visitThisExpr(thisExpr);
+            case Expr.Unary unary -> visitUnaryExpr(unary);
+            case Expr.Array array -> visitArrayExpr(array);
+            case Expr.Map map -> visitMapExpr(map);
+            case Expr.Index index -> visitIndexExpr(index);
+            case Expr.IndexSet indexSet -> visitIndexSetExpr(indexSet);
+        };
+    }
+
+    private void switchOnType(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Block block -> visitBlockStmt(block);
+            case Stmt.Class klass -> visitClassStmt(klass);
+            case Stmt.Expression expression -> visitExpressionStmt(expression);
+            case Stmt.For loop -> visitForStmt(loop);
+            case Stmt.Function function -> visitFunctionStmt(function);
+            case Stmt.If branch -> visitIfStmt(branch);
+            case Stmt.Var var -> visitVarStmt(var);
+            case Stmt.Return ret -> visitReturnStmt(ret);
+            case Stmt.Print print -> visitPrintStmt(print);
+            case Stmt.While loop -> visitWhileStmt(loop);
+            case Stmt.Yield yielding -> visitYieldStmt(yielding);
+            case Stmt.Import module -> visitImportStmt(module);
+        }
+    }
+
+    /**
+     * A tableswitch over the kind ordinal of the node and a cast.
+     * It doesn't depend on the JIT inlining accept(), but in bench/dispatch.sh
+     * it only beats the visitor on counted_loop, so accept() stays the default.
+     */
+    private Object switchOnKind(Expr expr) {
+        switch (expr.kind) {
+            case Expr.ARGUMENT: return visitArgumentExpr((Expr.Argument)expr);
+            case Expr.ASSIGN: return visitAssignExpr((Expr.Assign)expr);
+            case Expr.BINARY: return visitBinaryExpr((Expr.Binary)expr);
+            case Expr.CALL: return visitCallExpr((Expr.Call)expr);
+            case Expr.GET: return visitGetExpr((Expr.Get)expr);
+            case Expr.COMPARE_CONSTANT: return visitCompareConstantExpr((Expr.CompareConstant)expr);
+            case Expr.GROUPING: return visitGroupingExpr((Expr.Grouping)expr);
+            case Expr.INCREMENT: return visitIncrementExpr((Expr.Increment)expr);
+            case Expr.INVOKE: return visitInvokeExpr((Expr.Invoke)expr);
+            case Expr.LITERAL: return ((Expr.Literal)expr).value;
+            case Expr.VARIABLE: return visitVariableExpr((Expr.Variable)expr);
+            case Expr.LOGICAL: return visitLogicalExpr((Expr.Logical)expr);
+            case Expr.SET: return visitSetExpr((Expr.Set)expr);
+            case Expr.SUPER: return visitSuperExpr((Expr.Super)expr);
+            case Expr.THIS: return visitThisExpr((Expr.This)expr);
+            case Expr.UNARY: return visitUnaryExpr((Expr.Unary)expr);
+            case Expr.ARRAY: return visitArrayExpr((Expr.Array)expr);
+            case Expr.MAP: return visitMapExpr((Expr.Map)expr);
+            case Expr.INDEX: return visitIndexExpr((Expr.Index)expr);
+            default: return visitIndexSetExpr((Expr.IndexSet)expr);
+        }
+    }
+
+    private void switchOnKind(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.BLOCK: visitBlockStmt((Stmt.Block)stmt); break;
+            case Stmt.CLASS: visitClassStmt((Stmt.Class)stmt); break;
+            case Stmt.EXPRESSION: visitExpressionStmt((Stmt.Expression)stmt); break;
+            case Stmt.FOR: visitForStmt((Stmt.For)stmt); break;
+            case Stmt.FUNCTION: visitFunctionStmt((Stmt.Function)stmt); break;
+            case Stmt.IF: visitIfStmt((Stmt.If)stmt); break;
+            case Stmt.VAR: visitVarStmt((Stmt.Var)stmt); break;
+            case Stmt.RETURN: visitReturnStmt((Stmt.Return)stmt); break;
+            case Stmt.PRINT: visitPrintStmt((Stmt.Print)stmt); break;
+            case Stmt.WHILE: visitWhileStmt((Stmt.While)stmt); break;
+            case Stmt.YIELD: visitYieldStmt((Stmt.Yield)stmt); break;
+            default: visitImportStmt((Stmt.Import)stmt);
+        }
     }
 
     void executeBlock(List<Stmt> statements, Environment environment) {
@@ -184,9 +888,33 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
 
+    /**
+     * Runs a block the Resolver proved non-escaping in the current Environment.
+     * Its locals are defined next to the ones of the frame and removed afterwards.
+     */
+    private void executeInPlace(Stmt.Block stmt) {
+        metrics.environmentsElided++;
+        Object[] saved = stmt.shadowed.isEmpty() ? null : environment.save(stmt.shadowed);
+        Environment frame = environment;
+        try {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+        } finally {
+            frame.restore(stmt.locals, stmt.shadowed, saved);
+        }
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        if(stmt.elided) {
+            executeInPlace(stmt);
+            return null;
+        }
+        metrics.environmentsAllocated++;
+        Environment block = new Environment(environment);
+        block.defineForward(stmt.forward);
+        executeBlock(stmt.statements, block);
         return null;
     }
 
@@ -198,8 +926,98 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
+        if(stmt.boxed) {
+            // The function captures itself, so the cell has to exist before the closure
+            environment.defineBoxed(stmt.name.lexeme, null);
+            LoxFunction function = new LoxFunction(stmt, capture(stmt), false, this);
+            environment.assign(stmt.name, function);
+        } else {
+            LoxFunction function = new LoxFunction(stmt, capture(stmt), false, this);
+            environment.define(stmt.name.lexeme, function);
+        }
+        return null;
+    }
+
+    /**
+     * The globals of the running code, the root of its Environment chain.
+     * For the functions of a module that is the module's namespace,
+     * whichever Interpreter calls them, see LoxModule.
+     */
+    private Environment namespace() {
+        return environment.root();
+    }
+
+    /**
+     * Builds the closure of a function out of the upvalues the Resolver found.
+     * Only these are kept alive, not the whole enclosing Environment chain.
+     */
+    private Environment capture(Stmt.Function stmt) {
+        Environment namespace = namespace();
+        if(stmt.upvalues.isEmpty()) return namespace;
+
+        metrics.environmentsAllocated++;
+        Environment closure = new Environment(namespace);
+        for (String name : stmt.upvalues) {
+            closure.define(name, environment.getSlot(name, stmt.name));
+        }
+        return closure;
+    }
+
+    /**
+     * Like capture(), but 'this' is bound later by LoxFunction.bind()
+     * and 'super' is the superclass of the class being declared
+     */
+    private Environment captureMethod(Stmt.Function method, LoxClass superclass) {
+        Environment namespace = namespace();
+        Environment closure = namespace;
+        for (String name : method.upvalues) {
+            if(name.equals("this")) continue;
+            if(closure == namespace) {
+                metrics.environmentsAllocated++;
+                closure = new Environment(namespace);
+            }
+
+            if(name.equals("super")) {
+                closure.define(name, superclass);
+            } else {
+                closure.define(name, environment.getSlot(name, method.name));
+            }
+        }
+        return closure;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        Object superclass = null;
+        if(stmt.superclass != null) {
+            superclass = evaluate(stmt.superclass);
+            if(!(superclass instanceof LoxClass)) {
+                throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+            }
+        }
+
+        // Methods that refer to the class capture this cell
+        if(stmt.boxed) environment.defineBoxed(stmt.name.lexeme, null);
+
+        Map<String, LoxFunction> methods = new HashMap<>();
+        for (Stmt.Function method : stmt.methods) {
+            LoxFunction function = new LoxFunction(method,
+                    captureMethod(method, (LoxClass)superclass),
+                    method.name.lexeme.equals("init"), this);
+            methods.put(method.name.lexeme, function);
+        }
+
+        List<String> fields = new ArrayList<>();
+        for (Token field : stmt.fields) {
+            fields.add(field.lexeme);
+        }
+
+        LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, fields, methods);
+        if(stmt.boxed) {
+            environment.assign(stmt.name, klass);
+        } else {
+            environment.define(stmt.name.lexeme, klass);
+        }
         return null;
     }
 
@@ -220,7 +1038,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        if(stmt.boxed) {
+            environment.defineBoxed(stmt.name.lexeme, value);
+        } else {
+            environment.define(stmt.name.lexeme, value);
+        }
         return null;
     }
 
@@ -234,20 +1056,74 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        print(evaluate(stmt.expression));
+        return null;
+    }
+
+    void print(Object value) {
+        output.println(text(value));
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Object[] enclosing = enterLoop(stmt.invariants);
+        try {
+            while (isTruthy(evaluate(stmt.condition))) {
+                execute(stmt.body);
+                if (stmt.increment != null) evaluate(stmt.increment);
+            }
+        } finally {
+            invariants = enclosing;
+        }
         return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+        Object[] enclosing = enterLoop(stmt.invariants);
+        try {
+            while (isTruthy(evaluate(stmt.condition))) {
+                execute(stmt.body);
+            }
+        } finally {
+            invariants = enclosing;
         }
         return null;
     }
 
-    private boolean isTruthy(Object object) {
+    /**
+     * Generator bodies run on the StackMachine of their LoxGenerator,
+     * which suspends at a yield. The Resolver keeps yield out of other code.
+     */
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        throw new RuntimeError(stmt.keyword, "Can only yield in a generator.");
+    }
+
+    /**
+     * Binds the module, which was only loaded, its code runs when it's first read
+     */
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        environment.define(stmt.name.lexeme, modules.load(this, stmt));
+        return null;
+    }
+
+    /**
+     * Every execution of a loop starts with fresh invariants,
+     * the variables they read may have changed since the last one.
+     * Returns the invariants of the enclosing loop.
+     */
+    Object[] enterLoop(int count) {
+        Object[] enclosing = invariants;
+        if (count > 0) {
+            invariants = new Object[count];
+            Arrays.fill(invariants, NOT_EVALUATED);
+        }
+        return enclosing;
+    }
+
+    boolean isTruthy(Object object) {
         if(object == null) return false;
         if(object instanceof Boolean) return (boolean)object;
         return true;
@@ -257,6 +1133,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         // to avoid NullPointerExceptions check for null values
         if(a == null && b == null) return true;
         if(a == null) return false;
+        // a String and a LoxString with the same characters are equal
+        if(b instanceof LoxString) return b.equals(a);
         return a.equals(b);
     }
 
@@ -276,18 +1154,55 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private String stringify(Object object) {
-        if(object == null) return "nil";
+    String stringify(Object object) {
+        if(object instanceof String) return (String)object;
+
+        StringBuilder builder = new StringBuilder();
+        appendValue(builder, object);
+        return builder.toString();
+    }
 
-        if (object instanceof Double) {
-            String numberString = object.toString();
-            // all lox numbers are java doubles
-            if(numberString.endsWith(".0")) {
-                // represent java floating point numbers as integers
-                numberString = numberString.substring(0, numberString.length() - 2);
+    /**
+     * Writes the text of a value into the builder,
+     * numbers are formatted in place without an intermediate String
+     */
+    private void appendValue(StringBuilder builder, Object object) {
+        if(object == null) {
+            builder.append("nil");
+        } else if (object instanceof Double) {
+            NumberFormatter.append(builder, (double)object);
+        } else if (object instanceof LoxArray) {
+            LoxArray array = (LoxArray)object;
+            builder.append('[');
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) builder.append(", ");
+                appendValue(builder, array.get(i));
             }
-            return numberString;
+            builder.append(']');
+        } else if (object instanceof LoxMap) {
+            builder.append('{');
+            int start = builder.length();
+            ((LoxMap)object).forEach((key, value) -> {
+                if (builder.length() > start) builder.append(", ");
+                appendValue(builder, key);
+                builder.append(": ");
+                appendValue(builder, value);
+            });
+            builder.append('}');
+        } else if (object instanceof CharSequence) {
+            builder.append((CharSequence)object);
+        } else {
+            builder.append(object);
         }
-        return object.toString();
+    }
+
+    /**
+     * The text of a value in the shared buffer, valid until the next call.
+     * Print and string concatenation copy it right away.
+     */
+    private StringBuilder text(Object object) {
+        text.setLength(0);
+        appendValue(text, object);
+        return text;
     }
 }
@@ -0,0 +1,54 @@
+package lox;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The body of a large top-level function before its first call.
+ * Scripts often declare many more functions than a run calls. The body is
+ * parsed and resolved with the script, so its errors are reported before it
+ * runs, but the passes after the Resolver only see it once it's called.
+ * Until then the declaration has an empty body.
+ */
+class LazyBody {
+    private final List<Stmt> body;
+    // names assigned anywhere in the script, shared with the LoopOptimizer
+    private final Set<String> names;
+    // the script calls spawn(), see Parser.spawns()
+    private final boolean spawns;
+    private volatile boolean optimized = false;
+
+    LazyBody(List<Stmt> body, Set<String> names, boolean spawns) {
+        this.body = body;
+        this.names = names;
+        this.spawns = spawns;
+    }
+
+    /**
+     * The statements for the Resolver, which resolves them with the script
+     */
+    List<Stmt> body() {
+        return body;
+    }
+
+    boolean isOptimized() {
+        return optimized;
+    }
+
+    /**
+     * Runs the passes after the Resolver on a copy of the declaration and moves
+     * the body over once they are done, the declaration never has a half-optimized one.
+     */
+    synchronized void optimize(Stmt.Function function, Environment globals) {
+        if (optimized) return;
+
+        Stmt.Function copy = new Stmt.Function(function.name, function.params, body);
+        copy.upvalues = function.upvalues;
+        copy.boxedParams = function.boxedParams;
+        copy.generator = function.generator;
+        copy.forward = function.forward;
+        Lox.optimize(List.of(copy), globals, names, spawns);
+        function.body.addAll(body);
+        optimized = true;
+    }
+}
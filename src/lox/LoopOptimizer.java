@@ -0,0 +1,508 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Static pass after the Resolver that hoists loop invariants.
+ * A subexpression of a loop is invariant if it only reads variables the loop
+ * doesn't assign and only calls pure natives. The Interpreter evaluates it the
+ * first time an execution of the loop reaches it and reuses the value until the
+ * loop is done, so errors still show up at the same place and time.
+ * If the loop calls Lox functions or yields, other code could assign globals
+ * and boxed upvalues meanwhile, then only unboxed locals count as unchanged. The same holds for
+ * every loop of a script that spawns tasks: a loop running in a task doesn't
+ * call anything that assigns, but the script may assign at the same time.
+ */
+class LoopOptimizer implements Expr.Visitor<Boolean>, Stmt.Visitor<Void> {
+
+    /**
+     * Everything the pass collects about one loop
+     */
+    private static class Loop {
+        final Stmt stmt;
+        // names declared or assigned anywhere inside the loop, nested functions included
+        final Set<String> assigned = new HashSet<>();
+        // global names the loop calls, those may be natives
+        final Set<String> callees = new HashSet<>();
+        boolean otherCalls = false;
+        // side effect free subexpressions of the loop itself, invariant or not
+        final List<Expr> candidates = new ArrayList<>();
+        int invariants = 0;
+
+        Loop(Stmt stmt) {
+            this.stmt = stmt;
+        }
+    }
+
+    private final Environment globals;
+    // false for locals the Resolver boxed, closures may assign those
+    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    // variables read by candidates that are locals, see scopes
+    private final Map<Expr.Variable, Boolean> locals = new IdentityHashMap<>();
+    // every name the script declares or assigns, a native with such a name isn't trusted
+    private final Set<String> names;
+    // the script spawns tasks, see Parser.spawns()
+    private final boolean spawns;
+    private final List<Loop> loops = new ArrayList<>();
+    // all loops around the current node, across function boundaries
+    private final Stack<Loop> enclosing = new Stack<>();
+    // the innermost loop of the current function, null outside of loops
+    private Loop current = null;
+
+    /**
+     * names already holds what lazy bodies assign, see Parser.names()
+     */
+    LoopOptimizer(Environment globals, Set<String> names, boolean spawns) {
+        this.globals = globals;
+        this.names = names;
+        this.spawns = spawns;
+    }
+
+    /**
+     * Loops can only be decided once the whole script is seen,
+     * a later declaration may replace a native.
+     */
+    void optimize(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            optimize(statement);
+        }
+
+        for (Loop loop : loops) {
+            for (Expr candidate : loop.candidates) {
+                hoist(loop, candidate);
+            }
+            if (loop.stmt instanceof Stmt.While) {
+                ((Stmt.While)loop.stmt).invariants = loop.invariants;
+            } else {
+                ((Stmt.For)loop.stmt).invariants = loop.invariants;
+            }
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashMap<>());
+        for (Stmt statement : stmt.statements) {
+            optimize(statement);
+        }
+        scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name, !stmt.boxed);
+        if (stmt.superclass != null) candidate(stmt.superclass);
+
+        for (Stmt.Function method : stmt.methods) {
+            optimizeFunction(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        candidate(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        Loop outer = beginLoop(stmt);
+        candidate(stmt.condition);
+        optimize(stmt.body);
+        if (stmt.increment != null) candidate(stmt.increment);
+        endLoop(outer);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, !stmt.boxed);
+        optimizeFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        candidate(stmt.condition);
+        optimize(stmt.thenBranch);
+        if (stmt.elseBranch != null) optimize(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name, !stmt.boxed);
+        if (stmt.initializer != null) candidate(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) candidate(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        // other code runs while the generator is suspended, like an unknown call
+        for (Loop loop : enclosing) {
+            loop.otherCalls = true;
+        }
+        candidate(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        declare(stmt.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        candidate(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop outer = beginLoop(stmt);
+        candidate(stmt.condition);
+        optimize(stmt.body);
+        endLoop(outer);
+        return null;
+    }
+
+    // The expression visitors return true if the expression has no side effects.
+    // Those are the candidates, the largest invariant parts of them get hoisted.
+
+    @Override
+    public Boolean visitArgumentExpr(Expr.Argument expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        candidate(expr.value);
+        assign(expr.name);
+        return false;
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        return pure(expr.left, expr.right);
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        boolean global = expr.callee instanceof Expr.Variable
+                && lookup(((Expr.Variable)expr.callee).name) == null;
+        for (Loop loop : enclosing) {
+            if (global) {
+                loop.callees.add(((Expr.Variable)expr.callee).name.lexeme);
+            } else {
+                loop.otherCalls = true;
+            }
+        }
+
+        if (!global) {
+            candidate(expr.callee);
+            candidates(expr.arguments);
+            return false;
+        }
+        expr.callee.accept(this);
+        return pure(expr.arguments.toArray(new Expr[0]));
+    }
+
+    @Override
+    public Boolean visitGetExpr(Expr.Get expr) {
+        candidate(expr.object);
+        return false;
+    }
+
+    @Override
+    public Boolean visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return pure(expr.expression);
+    }
+
+    @Override
+    public Boolean visitIncrementExpr(Expr.Increment expr) {
+        assign(expr.name);
+        if (expr.fallback != null) candidate(expr.fallback);
+        return false;
+    }
+
+    @Override
+    public Boolean visitInvokeExpr(Expr.Invoke expr) {
+        for (Loop loop : enclosing) {
+            loop.otherCalls = true;
+        }
+        candidate(expr.object);
+        candidates(expr.arguments);
+        return false;
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        Boolean stable = lookup(expr.name);
+        if (stable != null) locals.put(expr, stable);
+        return true;
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical expr) {
+        return pure(expr.left, expr.right);
+    }
+
+    @Override
+    public Boolean visitSetExpr(Expr.Set expr) {
+        candidate(expr.value);
+        candidate(expr.object);
+        return false;
+    }
+
+    @Override
+    public Boolean visitSuperExpr(Expr.Super expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitThisExpr(Expr.This expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        return pure(expr.right);
+    }
+
+    @Override
+    public Boolean visitArrayExpr(Expr.Array expr) {
+        candidates(expr.elements);
+        return false;
+    }
+
+    @Override
+    public Boolean visitMapExpr(Expr.Map expr) {
+        candidates(expr.keys);
+        candidates(expr.values);
+        return false;
+    }
+
+    @Override
+    public Boolean visitIndexExpr(Expr.Index expr) {
+        candidate(expr.object);
+        candidate(expr.index);
+        return false;
+    }
+
+    @Override
+    public Boolean visitIndexSetExpr(Expr.IndexSet expr) {
+        candidate(expr.object);
+        candidate(expr.index);
+        candidate(expr.value);
+        return false;
+    }
+
+    private void optimize(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void optimizeFunction(Stmt.Function function) {
+        // Loops outside don't run the body, it only runs when it's called
+        Loop outer = current;
+        current = null;
+
+        scopes.push(new HashMap<>());
+        for (int i = 0; i < function.params.size(); i++) {
+            declare(function.params.get(i), !function.boxedParams[i]);
+        }
+        for (Stmt statement : function.body) {
+            optimize(statement);
+        }
+        scopes.pop();
+
+        current = outer;
+    }
+
+    private Loop beginLoop(Stmt stmt) {
+        Loop outer = current;
+        current = new Loop(stmt);
+        loops.add(current);
+        enclosing.push(current);
+        return outer;
+    }
+
+    private void endLoop(Loop outer) {
+        enclosing.pop();
+        current = outer;
+    }
+
+    /**
+     * Pure if all children are, otherwise the pure children are candidates on their own
+     */
+    private boolean pure(Expr... children) {
+        boolean[] pure = new boolean[children.length];
+        boolean all = true;
+        for (int i = 0; i < children.length; i++) {
+            pure[i] = children[i].accept(this);
+            all &= pure[i];
+        }
+
+        if (!all) {
+            for (int i = 0; i < children.length; i++) {
+                if (pure[i]) addCandidate(children[i]);
+            }
+        }
+        return all;
+    }
+
+    private void candidate(Expr expr) {
+        if (expr.accept(this)) addCandidate(expr);
+    }
+
+    private void candidates(List<Expr> exprs) {
+        for (Expr expr : exprs) {
+            candidate(expr);
+        }
+    }
+
+    private void addCandidate(Expr expr) {
+        if (current != null) current.candidates.add(expr);
+    }
+
+    private void declare(Token name, boolean stable) {
+        assign(name);
+        if (!scopes.isEmpty()) scopes.peek().put(name.lexeme, stable);
+    }
+
+    private void assign(Token name) {
+        names.add(name.lexeme);
+        for (Loop loop : enclosing) {
+            loop.assigned.add(name.lexeme);
+        }
+    }
+
+    /**
+     * Null for globals, otherwise if the local is unboxed
+     */
+    private Boolean lookup(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Boolean stable = scopes.get(i).get(name.lexeme);
+            if (stable != null) return stable;
+        }
+        return null;
+    }
+
+    /**
+     * Marks the largest invariant parts of a candidate
+     */
+    private void hoist(Loop loop, Expr expr) {
+        if (isInvariant(loop, expr)) {
+            mark(loop, expr);
+        } else if (expr instanceof Expr.Grouping) {
+            hoist(loop, ((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            hoist(loop, ((Expr.Unary)expr).right);
+        } else if (expr instanceof Expr.Binary) {
+            hoist(loop, ((Expr.Binary)expr).left);
+            hoist(loop, ((Expr.Binary)expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            hoist(loop, ((Expr.Logical)expr).left);
+            hoist(loop, ((Expr.Logical)expr).right);
+        } else if (expr instanceof Expr.Call) {
+            for (Expr argument : ((Expr.Call)expr).arguments) {
+                hoist(loop, argument);
+            }
+        }
+    }
+
+    private boolean isInvariant(Loop loop, Expr expr) {
+        if (expr instanceof Expr.Literal) return true;
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (loop.assigned.contains(variable.name.lexeme)) return false;
+            if (locals.get(variable) == Boolean.TRUE) return true;
+            return !spawns && !callsFunctions(loop);
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isInvariant(loop, ((Expr.Grouping)expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            return isInvariant(loop, ((Expr.Unary)expr).right);
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return isInvariant(loop, binary.left) && isInvariant(loop, binary.right);
+        }
+        if (expr instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)expr;
+            return isInvariant(loop, logical.left) && isInvariant(loop, logical.right);
+        }
+        if (expr instanceof Expr.Call) {
+            // candidates only contain calls of global names
+            Expr.Call call = (Expr.Call)expr;
+            LoxNative function = trustedNative(((Expr.Variable)call.callee).name.lexeme);
+            if (function == null || !function.isPure()) return false;
+            for (Expr argument : call.arguments) {
+                if (!isInvariant(loop, argument)) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void mark(Loop loop, Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            ((Expr.Binary)expr).invariant = loop.invariants++;
+        } else if (expr instanceof Expr.Unary) {
+            ((Expr.Unary)expr).invariant = loop.invariants++;
+        } else if (expr instanceof Expr.Call) {
+            ((Expr.Call)expr).invariant = loop.invariants++;
+        } else if (expr instanceof Expr.Grouping) {
+            mark(loop, ((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Logical) {
+            mark(loop, ((Expr.Logical)expr).left);
+            mark(loop, ((Expr.Logical)expr).right);
+        }
+    }
+
+    /**
+     * Natives can't assign variables, every other call might
+     */
+    private boolean callsFunctions(Loop loop) {
+        if (loop.otherCalls) return true;
+        for (String callee : loop.callees) {
+            if (trustedNative(callee) == null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The native a global name is bound to, if the script never rebinds it
+     */
+    private LoxNative trustedNative(String name) {
+        if (names.contains(name)) return null;
+        Object value = globals.find(name);
+        return value instanceof LoxNative ? (LoxNative)value : null;
+    }
+}
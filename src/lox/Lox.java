@@ -1,50 +1,130 @@
 package lox;
 
 import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
-
+import java.util.Set;
+import javax.management.JMException;
+
+/**
+ * One interpreter context: its globals, where its output goes and whether it had errors.
+ * The command line uses one, the Daemon one per submitted script.
+ * The Scanner, Parser and Resolver report errors through the static methods,
+ * which go to the context running on the current thread.
+ */
 public class Lox {
     // sysexits.h UNIX exit codes
     static final int EX_USAGE = 64;
     static final int EX_DATAERR = 65;
     static final int EX_SOFTWARE = 70;
 
-    private static final Interpreter interpreter = new Interpreter();
+    private static final ThreadLocal<Lox> current = new ThreadLocal<>();
+
+    private final Interpreter interpreter;
+    private final PrintStream errors;
 
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    private boolean hadError = false;
+    private boolean hadRuntimeError = false;
 
+    Lox(OutputSink output, PrintStream errors) {
+        this.interpreter = new Interpreter(output);
+        this.errors = errors;
+    }
 
     public static void main(String[] args) throws IOException {
+        if(args.length == 2 && args[0].equals("--daemon")) {
+            Daemon.serve(Paths.get(args[1]));
+            return;
+        }
         if(args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+            System.out.println("Usage: jlox [script] | jlox --daemon <socket>");
             System.exit(EX_USAGE);
         }
+        Lox lox = new Lox(openOutput(), System.err);
+        // The platform MBeanServer takes a while to start, so JMX is opt-in
+        if(Boolean.getBoolean("lox.metrics.jmx")) lox.registerMetrics();
         if(args.length == 1) {
-            runFile(args[0]);
+            lox.runFile(args[0]);
+        } else {
+            lox.runREPLPrompt();
         }
-        runREPLPrompt();
     }
 
-    private static void runFile(String path) throws IOException {
+    private void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path directory = Paths.get(path).toAbsolutePath().getParent();
+        int status = runScript(new String(bytes, Charset.defaultCharset()), directory);
+        if(Boolean.getBoolean("lox.debug.stats")) printStats();
+
+        if(status != 0) System.exit(status);
+    }
+
+    /**
+     * Runs a whole script and returns its exit code.
+     * The script imports modules relative to its own directory.
+     */
+    int runScript(String source, Path directory) {
+        interpreter.directory = directory;
+        current.set(this);
+        try {
+            run(source);
+        } finally {
+            interpreter.flush();
+            current.remove();
+        }
+        if(hadError) return EX_DATAERR;
+        if(hadRuntimeError) return EX_SOFTWARE;
+        return 0;
+    }
+
+    /**
+     * The context of the script running on this thread
+     */
+    static Lox current() {
+        return current.get();
+    }
 
+    /**
+     * True if the script running on this thread reported a syntax or resolution error
+     */
+    static boolean hadError() {
+        return current.get().hadError;
+    }
 
-        if(hadError) System.exit(EX_DATAERR);
-        if(hadRuntimeError) System.exit(EX_SOFTWARE);
+    /**
+     * Runs part of a script on another thread, e.g. a parallel task on a pool thread.
+     * Errors reported on the way, like the ones of a late parsed body, go to the script.
+     */
+    static void runAs(Lox lox, Runnable task) {
+        Lox previous = current.get();
+        current.set(lox);
+        try {
+            task.run();
+        } finally {
+            // the pool thread may have been helping with a task of another script
+            if(previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
     }
 
-    private static void runREPLPrompt() throws IOException {
+    private void runREPLPrompt() throws IOException {
         InputStreamReader userInput = new InputStreamReader(System.in);
         BufferedReader buffReader = new BufferedReader(userInput);
 
+        current.set(this);
         while(true) {
+            interpreter.flush();
             System.out.println("> ");
             String loxLine = buffReader.readLine();
             if(loxLine == null) break;
@@ -55,26 +135,108 @@ public class Lox {
         }
     }
 
-    private static void run(String source) {
+    /**
+     * Print output is buffered and flushed at the end of a script,
+     * on a runtime error and before each REPL prompt.
+     * -Dlox.output=<file> writes it to a file through a FileChannel,
+     * -Dlox.output.flushLines=true flushes after every line again.
+     */
+    private static OutputSink openOutput() throws IOException {
+        boolean flushLines = Boolean.getBoolean("lox.output.flushLines");
+        String file = System.getProperty("lox.output");
+        if(file != null) return new ChannelOutput(Paths.get(file), flushLines);
+        return new StreamOutput(new FileOutputStream(FileDescriptor.out), flushLines);
+    }
+
+    private void run(String source) {
+        Metrics metrics = interpreter.metrics;
+        metrics.scriptsRun++;
+
+        PhaseEvent phase = PhaseEvent.start("scan");
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
+        metrics.scanTime += phase.finish();
+
+        phase = PhaseEvent.start("parse");
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
+        metrics.parseTime += phase.finish();
 
         // Stop if there is a syntax Error
         if(hadError) return;
 
+        phase = PhaseEvent.start("resolve");
+        boolean resolved = compile(statements, interpreter.globals, parser.names(), parser.spawns());
+        metrics.resolveTime += phase.finish();
+
+        // Stop if there is a resolution Error
+        if(!resolved) return;
+
+        phase = PhaseEvent.start("execute");
         interpreter.interpret(statements);
+        metrics.executeTime += phase.finish();
+    }
+
+    /**
+     * Runs the static passes over parsed code.
+     * Returns false if the Resolver reported an error.
+     */
+    static boolean compile(List<Stmt> statements, Environment globals, Set<String> names,
+                           boolean spawns) {
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+        if(current.get().hadError) return false;
+
+        optimize(statements, globals, names, spawns);
+        return true;
+    }
+
+    /**
+     * The passes after the Resolver, for a lazy body they run on its first call
+     */
+    static void optimize(List<Stmt> statements, Environment globals, Set<String> names,
+                         boolean spawns) {
+        Inliner inliner = new Inliner(Integer.getInteger("lox.inline.maxSize", 16),
+                Boolean.getBoolean("lox.debug.inline"));
+        inliner.inline(statements);
+
+        LoopOptimizer optimizer = new LoopOptimizer(globals, names, spawns);
+        optimizer.optimize(statements);
+
+        if(!"false".equals(System.getProperty("lox.types"))) {
+            TypeAnalyzer analyzer = new TypeAnalyzer();
+            analyzer.analyze(statements);
+        }
+
+        if("flat".equals(System.getProperty("lox.ast"))) {
+            Flattener flattener = new Flattener(Integer.getInteger("lox.ast.minSize", 5));
+            flattener.flatten(statements);
+        }
+    }
+
+    private void registerMetrics() {
+        try {
+            interpreter.metrics.register();
+        } catch (JMException error) {
+            System.err.println("Could not register the metrics MBean: " + error.getMessage());
+        }
+    }
+
+    private void printStats() {
+        System.err.println("[stats] environments elided: " + interpreter.metrics.environmentsElided);
+        System.err.println("[stats] loop invariants reused: " + interpreter.metrics.invariantsReused);
     }
 
     private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+        Lox lox = current.get();
+        lox.errors.println("[line " + line + "] Error" + where + ": " + message);
+        lox.hadError = true;
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        Lox lox = current.get();
+        lox.errors.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        lox.hadRuntimeError = true;
     }
 
     static void error(Token token, String message) {
@@ -0,0 +1,78 @@
+package lox;
+
+import java.util.Arrays;
+
+/**
+ * The Array value.
+ * As long as an array only holds numbers they are kept unboxed in a double[].
+ * The first store of anything else moves the elements into an Object[] for good.
+ */
+class LoxArray {
+    private double[] numbers;
+    private Object[] objects;
+    private int size = 0;
+
+    LoxArray() {
+        this(8);
+    }
+
+    LoxArray(int capacity) {
+        numbers = new double[Math.max(capacity, 1)];
+    }
+
+    Object get(int index) {
+        checkIndex(index);
+        if (numbers != null) return numbers[index];
+        return objects[index];
+    }
+
+    void set(int index, Object value) {
+        checkIndex(index);
+        if (numbers != null) {
+            if (value instanceof Double) {
+                numbers[index] = (double)value;
+                return;
+            }
+            generalize();
+        }
+        objects[index] = value;
+    }
+
+    void append(Object value) {
+        if (numbers != null) {
+            if (value instanceof Double) {
+                if (size == numbers.length) numbers = Arrays.copyOf(numbers, size * 2);
+                numbers[size++] = (double)value;
+                return;
+            }
+            generalize();
+        }
+        if (size == objects.length) objects = Arrays.copyOf(objects, size * 2);
+        objects[size++] = value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * True while the elements are stored unboxed
+     */
+    boolean isNumeric() {
+        return numbers != null;
+    }
+
+    private void generalize() {
+        objects = new Object[numbers.length];
+        for (int i = 0; i < size; i++) {
+            objects[i] = numbers[i];
+        }
+        numbers = null;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new NativeError("Array index out of range.");
+        }
+    }
+}
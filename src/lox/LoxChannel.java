@@ -0,0 +1,86 @@
+package lox;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The Channel value, a bounded queue between tasks, see TaskModule.
+ * send() waits while the channel is full, receive() while it is empty.
+ * After close() the values already sent can still be received,
+ * then receive() returns nil.
+ * Waiting uses a ReentrantLock, a virtual thread blocked on the channel
+ * gives its carrier thread back to other tasks.
+ */
+class LoxChannel {
+    private final Object[] values;
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+
+    LoxChannel(int capacity) {
+        values = new Object[capacity];
+    }
+
+    void send(Object value) {
+        lock.lock();
+        try {
+            while (count == values.length && !closed) await(notFull);
+            if (closed) throw new NativeError("Can't send on a closed channel.");
+
+            values[(head + count) % values.length] = value;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Object receive() {
+        lock.lock();
+        try {
+            while (count == 0 && !closed) await(notEmpty);
+            if (count == 0) return null;
+
+            Object value = values[head];
+            values[head] = null;
+            head = (head + 1) % values.length;
+            count--;
+            notFull.signal();
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up everyone waiting, closing twice is fine
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void await(Condition condition) {
+        try {
+            condition.await();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while waiting on a channel.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<channel>";
+    }
+}
@@ -0,0 +1,56 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+class LoxClass implements LoxCallable {
+    final String name;
+    final LoxClass superclass;
+    private final Map<String, LoxFunction> methods;
+    final List<String> fields;
+    final Shape rootShape;
+    final LoxFunction initializer;
+
+    LoxClass(String name, LoxClass superclass, List<String> fields,
+             Map<String, LoxFunction> methods) {
+        this.name = name;
+        this.superclass = superclass;
+        this.methods = methods;
+
+        // inherited fields keep their slots in front of the own ones
+        this.fields = new ArrayList<>();
+        if (superclass != null) this.fields.addAll(superclass.fields);
+        this.fields.addAll(fields);
+        this.rootShape = Shape.root(this, this.fields);
+        this.initializer = findMethod("init");
+    }
+
+    LoxFunction findMethod(String name) {
+        LoxFunction method = methods.get(name);
+        if (method != null) return method;
+
+        if (superclass != null) return superclass.findMethod(name);
+        return null;
+    }
+
+    @Override
+    public int arity() {
+        if (initializer == null) return 0;
+        return initializer.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) {
+            initializer.callMethod(interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,74 @@
+package lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Thin client for the Daemon: sends a script, copies what it prints
+ * to stdout and stderr and exits with its exit code.
+ * It only loads a handful of classes, so it starts much faster than the interpreter.
+ */
+public class LoxClient {
+    public static void main(String[] args) throws IOException {
+        if(args.length != 2) {
+            System.out.println("Usage: jlox-client <socket> <script>");
+            System.exit(Lox.EX_USAGE);
+        }
+        Path script = Paths.get(args[1]).toAbsolutePath();
+        byte[] source = Files.readAllBytes(script);
+
+        SocketChannel connection;
+        try {
+            connection = SocketChannel.open(UnixDomainSocketAddress.of(args[0]));
+        } catch (IOException error) {
+            System.err.println("No daemon listening on " + args[0] + ".");
+            System.exit(Lox.EX_SOFTWARE);
+            return;
+        }
+
+        try (SocketChannel channel = connection) {
+            DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeUTF(script.getParent().toString());
+            request.writeInt(source.length);
+            request.write(source);
+            request.flush();
+
+            DataInputStream response = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel)));
+            OutputStream out = new FileOutputStream(FileDescriptor.out);
+            OutputStream err = new FileOutputStream(FileDescriptor.err);
+            byte[] buffer = new byte[8192];
+            while(true) {
+                byte tag = response.readByte();
+                if(tag == Daemon.EXIT) {
+                    System.exit(response.readInt());
+                }
+                OutputStream target = tag == Daemon.ERR ? err : out;
+                int length = response.readInt();
+                while(length > 0) {
+                    int chunk = Math.min(length, buffer.length);
+                    response.readFully(buffer, 0, chunk);
+                    target.write(buffer, 0, chunk);
+                    length -= chunk;
+                }
+            }
+        } catch (EOFException error) {
+            System.err.println("The daemon closed the connection.");
+            System.exit(Lox.EX_SOFTWARE);
+        }
+    }
+}
@@ -5,10 +5,28 @@ import java.util.List;
 class LoxFunction  implements LoxCallable {
     private final Stmt.Function declaration;
     private final Environment closure;
+    private final boolean isInitializer;
+    // the Interpreter that ran the declaration, for parallel tasks the one of the task
+    private final Interpreter creator;
 
-    LoxFunction(Stmt.Function declaration, Environment closure) {
+    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, Interpreter creator) {
         this.declaration = declaration;
         this.closure = closure;
+        this.isInitializer = isInitializer;
+        this.creator = creator;
+    }
+
+    /**
+     * The method with 'this' bound to the instance
+     */
+    LoxFunction bind(LoxInstance instance) {
+        Environment environment = new Environment(closure);
+        environment.define("this", instance);
+        return new LoxFunction(declaration, environment, isInitializer, creator);
+    }
+
+    boolean isDeclaredBy(Stmt.Function function) {
+        return declaration == function;
     }
 
     @Override
@@ -18,20 +36,153 @@ class LoxFunction  implements LoxCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
+        if (isGenerator()) return generator(interpreter, null, arguments);
+        return execute(interpreter, new Environment(closure), arguments);
+    }
+
+    /**
+     * Calls the method with 'this' defined in the frame of the call,
+     * so no bound LoxFunction has to be created for it
+     */
+    Object callMethod(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+        if (isGenerator()) return generator(interpreter, instance, arguments);
         Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+        environment.define("this", instance);
+        return execute(interpreter, environment, arguments);
+    }
+
+    private Object execute(Interpreter interpreter, Environment environment, List<Object> arguments) {
+        optimizeLazyBody();
+        checkTask(interpreter);
+
+        interpreter.metrics.environmentsAllocated++;
+        CallEvent event = new CallEvent();
+        event.begin();
+        try {
+            return run(interpreter, environment, arguments);
+        } finally {
+            endEvent(event);
+        }
+    }
+
+    /**
+     * Ends the JFR event of a call, it is only recorded if the call took long enough
+     */
+    void endEvent(CallEvent event) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.function = declaration.name.lexeme;
+            event.line = declaration.name.line;
+            event.commit();
         }
+    }
+
+    private Object run(Interpreter interpreter, Environment environment, List<Object> arguments) {
+        defineParameters(environment, arguments);
+        environment.defineForward(declaration.forward);
 
         try {
             interpreter.executeBlock(declaration.body, environment);
         } catch (Return returnValue) {
+            // init() always returns the instance, even on an early return
+            if (isInitializer) return instance(environment);
             return returnValue.value;
         }
+
+        if (isInitializer) return instance(environment);
         return null;
     }
 
+    /**
+     * The Environment a call runs the body in, with the arguments defined
+     * and 'this' for a method. For the StackMachine, which runs the body itself.
+     */
+    Environment enter(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+        optimizeLazyBody();
+        checkTask(interpreter);
+        interpreter.metrics.environmentsAllocated++;
+        Environment environment = new Environment(closure);
+        if (instance != null) environment.define("this", instance);
+        defineParameters(environment, arguments);
+        environment.defineForward(declaration.forward);
+        return environment;
+    }
+
+    /**
+     * True if the function has a yield in its body, calling it returns a LoxGenerator
+     */
+    boolean isGenerator() {
+        return declaration.generator;
+    }
+
+    /**
+     * The generator a call of the function returns, its body runs on the first next()
+     */
+    LoxGenerator generator(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+        checkTask(interpreter);
+        return new LoxGenerator(interpreter, this, instance, arguments);
+    }
+
+    /**
+     * True if the function assigns a global or a variable of an enclosing function,
+     * tasks running it in parallel would race on that variable
+     */
+    boolean assignsOuter() {
+        return declaration.assignsOuter;
+    }
+
+    /**
+     * A parallel task may call a function that only assigns its own variables,
+     * or the variables of the task's frames it was declared in
+     */
+    private void checkTask(Interpreter interpreter) {
+        if (interpreter.parallel && !isTaskLocal(interpreter)) {
+            throw new RuntimeError(declaration.name, "Can't call '" + declaration.name.lexeme
+                    + "' in a parallel task, it assigns variables declared outside of it.");
+        }
+    }
+
+    private boolean isTaskLocal(Interpreter task) {
+        if (declaration.assignsGlobal) return false;
+        return !declaration.assignsOuter || creator == task;
+    }
+
+    List<Stmt> body() {
+        return declaration.body;
+    }
+
+    boolean isInitializer() {
+        return isInitializer;
+    }
+
+    /**
+     * The instance an init() call returns, from the Environment of the call
+     */
+    Object instance(Environment environment) {
+        return environment.getSlot("this", declaration.name);
+    }
+
+    /**
+     * A function of a module is optimized against the module's namespace,
+     * not the globals of the Interpreter that calls it
+     */
+    private void optimizeLazyBody() {
+        LazyBody lazy = declaration.lazy;
+        if (lazy != null && !lazy.isOptimized()) lazy.optimize(declaration, closure.root());
+    }
+
+    private void defineParameters(Environment environment, List<Object> arguments) {
+        for (int i = 0; i < declaration.params.size(); i++) {
+            if (declaration.boxedParams[i]) {
+                environment.defineBoxed(declaration.params.get(i).lexeme,
+                        arguments.get(i));
+            } else {
+                environment.define(declaration.params.get(i).lexeme,
+                        arguments.get(i));
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
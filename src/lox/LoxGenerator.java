@@ -0,0 +1,107 @@
+package lox;
+
+import java.util.List;
+
+/**
+ * The Generator value, what calling a function with a yield in its body returns.
+ * The call doesn't run the body, every next(generator) runs it up to its next
+ * yield and returns the yielded value. A pipeline of generators only holds the
+ * element each stage is working on, instead of a list per stage.
+ *
+ * The body runs on a StackMachine of its own, which keeps the suspended blocks,
+ * loops and calls on its stacks. It shares the Interpreter that called the
+ * function, whose Environment, loop invariants and inlined arguments are
+ * swapped for the body's while it runs.
+ */
+class LoxGenerator {
+    private final Interpreter interpreter;
+    private LoxFunction function;
+    private LoxInstance instance;
+    private List<Object> arguments;
+
+    // null once the body ran to its end or failed
+    private StackMachine machine;
+    private boolean running = false;
+
+    // the state of the suspended body
+    private Environment environment;
+    private Object[] invariants = null;
+    private Object[] inlinedArguments = null;
+
+    // a value hasNext() ran the body for, next() returns it
+    private boolean buffered = false;
+    private Object value;
+
+    LoxGenerator(Interpreter interpreter, LoxFunction function, LoxInstance instance, List<Object> arguments) {
+        this.interpreter = interpreter;
+        this.function = function;
+        this.instance = instance;
+        this.arguments = arguments;
+        this.machine = new StackMachine(interpreter, StackMachine.maxDepth());
+        this.environment = interpreter.environment;
+    }
+
+    boolean hasNext(Interpreter caller) {
+        if (!buffered && machine != null) {
+            value = resume(caller);
+            buffered = machine != null;
+        }
+        return buffered;
+    }
+
+    Object next(Interpreter caller) {
+        if (!hasNext(caller)) throw new NativeError("The generator is done.");
+        buffered = false;
+        Object next = value;
+        value = null;
+        return next;
+    }
+
+    /**
+     * Runs the body up to its next yield, or to its end, which drops the machine
+     */
+    private Object resume(Interpreter caller) {
+        if (caller != interpreter) {
+            throw new NativeError("Can't resume a generator in another task than the one that created it.");
+        }
+        if (running) throw new NativeError("Can't resume a generator from its own body.");
+
+        Environment callerEnvironment = interpreter.environment;
+        Object[] callerInvariants = interpreter.invariants;
+        Object[] callerArguments = interpreter.arguments;
+        running = true;
+        try {
+            interpreter.environment = environment;
+            interpreter.invariants = invariants;
+            interpreter.arguments = inlinedArguments;
+            if (function != null) {
+                machine.start(function, instance, arguments);
+                function = null;
+                instance = null;
+                arguments = null;
+            }
+
+            if (!machine.resume()) {
+                machine = null;
+                return null;
+            }
+            environment = interpreter.environment;
+            invariants = interpreter.invariants;
+            inlinedArguments = interpreter.arguments;
+            return machine.yielded();
+        } catch (RuntimeException error) {
+            machine = null;
+            throw error;
+        } finally {
+            running = false;
+            interpreter.environment = callerEnvironment;
+            interpreter.invariants = callerInvariants;
+            interpreter.arguments = callerArguments;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<generator>";
+    }
+}
@@ -0,0 +1,37 @@
+package lox;
+
+import java.util.Arrays;
+
+class LoxInstance {
+    final LoxClass klass;
+    Shape shape;
+    private Object[] fields;
+
+    LoxInstance(LoxClass klass) {
+        this.klass = klass;
+        this.shape = klass.rootShape;
+        // declared fields start out as nil, leave some room for added ones
+        this.fields = new Object[Math.max(shape.size(), 4)];
+    }
+
+    Object field(int slot) {
+        return fields[slot];
+    }
+
+    /**
+     * Stores into a slot of the target Shape, which is the next Shape
+     * if the store adds the field
+     */
+    void store(Shape target, int slot, Object value) {
+        if (target != shape) {
+            if (slot >= fields.length) fields = Arrays.copyOf(fields, fields.length * 2);
+            shape = target;
+        }
+        fields[slot] = value;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,130 @@
+package lox;
+
+/**
+ * The Map value, an open addressing hash table with linear probing.
+ * Keys compare like Lox values with '=='. nil can't be a key,
+ * since an empty slot is marked with null.
+ */
+class LoxMap {
+    interface EntryConsumer {
+        void accept(Object key, Object value);
+    }
+
+    private Object[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    LoxMap() {
+        keys = new Object[16];
+        values = new Object[16];
+    }
+
+    Object get(Object key) {
+        if (key == null) return null;
+        key = flatten(key);
+        int slot = find(keys, key);
+        return keys[slot] == null ? null : values[slot];
+    }
+
+    boolean has(Object key) {
+        if (key == null) return false;
+        key = flatten(key);
+        return keys[find(keys, key)] != null;
+    }
+
+    void put(Object key, Object value) {
+        if (key == null) throw new NativeError("Map key can't be nil.");
+        key = flatten(key);
+
+        int slot = find(keys, key);
+        if (keys[slot] == null) {
+            // keep the load factor at or below 1/2
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(keys, key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    void remove(Object key) {
+        if (key == null) return;
+        key = flatten(key);
+        int slot = find(keys, key);
+        if (keys[slot] == null) return;
+
+        keys[slot] = null;
+        values[slot] = null;
+        size--;
+
+        // Backward shift, so the probe sequences stay without gaps
+        int mask = keys.length - 1;
+        int empty = slot;
+        for (int i = (slot + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            // Move the entry if its home isn't cyclically in (empty, i]
+            if (((i - home) & mask) >= ((i - empty) & mask)) {
+                keys[empty] = keys[i];
+                values[empty] = values[i];
+                keys[i] = null;
+                values[i] = null;
+                empty = i;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Keys are stored as Strings, String.equals() doesn't know LoxString
+     */
+    private static Object flatten(Object key) {
+        return key instanceof LoxString ? key.toString() : key;
+    }
+
+    /**
+     * Returns the slot holding the key, or the empty slot where it belongs
+     */
+    private static int find(Object[] keys, Object key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != null && !keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(Object key) {
+        // Doubles of small integers only differ in their high bits,
+        // so mix them into the low bits the mask keeps (murmur3 finalizer)
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        Object[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new Object[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = find(keys, oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package lox;
+
+import java.util.List;
+
+/**
+ * The Module value an import binds, named after its file without '.lox'.
+ * The import only loads the module, its top-level code runs the first time
+ * one of its globals is read through module.name, and only once.
+ *
+ * The code runs on an Interpreter of its own, whose globals are the module's
+ * namespace. Its functions and classes have the namespace at the root of their
+ * closures, so they read and assign the module's globals wherever they are called.
+ * A module that is read while its code runs, e.g. through an import cycle,
+ * has the globals defined so far.
+ */
+class LoxModule {
+    final String name;
+    // of the file the module was loaded from, see ModuleLoader
+    final long modified;
+    private final Interpreter interpreter;
+    // null once the code started running
+    private List<Stmt> statements;
+
+    LoxModule(String name, long modified, Interpreter interpreter, List<Stmt> statements) {
+        this.name = name;
+        this.modified = modified;
+        this.interpreter = interpreter;
+        this.statements = statements;
+    }
+
+    Object get(Interpreter caller, Token name) {
+        evaluate(caller);
+        return interpreter.globals.cell(name).value;
+    }
+
+    private synchronized void evaluate(Interpreter caller) {
+        if (statements == null) return;
+        List<Stmt> code = statements;
+        statements = null;
+        caller.evaluateModule(interpreter, code);
+    }
+
+    @Override
+    public String toString() {
+        return "<module " + name + ">";
+    }
+}
@@ -0,0 +1,107 @@
+package lox;
+
+import java.util.List;
+
+/**
+ * A function implemented in Java.
+ * The Interpreter recognizes natives as intrinsics and calls them directly
+ * with the evaluated arguments, without building the argument List.
+ */
+abstract class LoxNative implements LoxCallable {
+    interface Fn0 { Object call(); }
+    interface Fn1 { Object call(Object a); }
+    interface Fn2 { Object call(Object a, Object b); }
+    interface Fn3 { Object call(Object a, Object b, Object c); }
+
+    private final int arity;
+    // Same result for the same arguments and no side effects,
+    // so the LoopOptimizer may call it once per loop
+    private boolean pure = false;
+
+    private LoxNative(int arity) {
+        this.arity = arity;
+    }
+
+    LoxNative pure() {
+        pure = true;
+        return this;
+    }
+
+    boolean isPure() {
+        return pure;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    // Only the one matching the arity is overridden
+    Object call0() { throw new IllegalStateException(); }
+    Object call1(Object a) { throw new IllegalStateException(); }
+    Object call2(Object a, Object b) { throw new IllegalStateException(); }
+    Object call3(Object a, Object b, Object c) { throw new IllegalStateException(); }
+
+    /**
+     * The generic path, for callers that already have the arguments in a List
+     */
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        switch (arity) {
+            case 0: return call0();
+            case 1: return call1(arguments.get(0));
+            case 2: return call2(arguments.get(0), arguments.get(1));
+            default: return call3(arguments.get(0), arguments.get(1), arguments.get(2));
+        }
+    }
+
+    @Override
+    public String toString() { return "<native fn>"; }
+
+    static LoxNative of(Fn0 fn) {
+        return new LoxNative(0) {
+            @Override
+            Object call0() { return fn.call(); }
+        };
+    }
+
+    static LoxNative of(Fn1 fn) {
+        return new LoxNative(1) {
+            @Override
+            Object call1(Object a) { return fn.call(a); }
+        };
+    }
+
+    static LoxNative of(Fn2 fn) {
+        return new LoxNative(2) {
+            @Override
+            Object call2(Object a, Object b) { return fn.call(a, b); }
+        };
+    }
+
+    static LoxNative of(Fn3 fn) {
+        return new LoxNative(3) {
+            @Override
+            Object call3(Object a, Object b, Object c) { return fn.call(a, b, c); }
+        };
+    }
+
+    // Argument checks shared by the modules
+
+    static double number(Object argument, String function) {
+        if (argument instanceof Double) return (double)argument;
+        throw new NativeError("Argument to '" + function + "' must be a number.");
+    }
+
+    static int integer(Object argument, String function) {
+        double number = number(argument, function);
+        if (number == (int)number) return (int)number;
+        throw new NativeError("Argument to '" + function + "' must be an integer.");
+    }
+
+    static String string(Object argument, String function) {
+        if (argument instanceof String) return (String)argument;
+        if (argument instanceof LoxString) return argument.toString();
+        throw new NativeError("Argument to '" + function + "' must be a string.");
+    }
+}
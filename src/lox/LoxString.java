@@ -0,0 +1,104 @@
+package lox;
+
+/**
+ * A string built by concatenation.
+ * Concatenations that extend the same prefix share one StringBuilder:
+ * as long as the left operand ends where the buffer ends, the right operand
+ * is appended in place instead of copying the whole string again.
+ * That makes building a string in a loop linear instead of quadratic.
+ * The characters are only flattened into a String when they're printed,
+ * compared or hashed.
+ */
+class LoxString implements CharSequence {
+    // Below this length copying is cheaper than sharing a buffer
+    private static final int MIN_LENGTH = 64;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat = null;
+
+    private LoxString(StringBuilder buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    /**
+     * Concatenates a String or LoxString with the text of the right operand
+     */
+    static Object concat(Object left, CharSequence right) {
+        if (left instanceof LoxString) {
+            return ((LoxString)left).append(right);
+        }
+
+        String string = (String)left;
+        int length = string.length() + right.length();
+        if (length < MIN_LENGTH) return string + right;
+
+        StringBuilder buffer = new StringBuilder(length * 2);
+        buffer.append(string).append(right);
+        return new LoxString(buffer, length);
+    }
+
+    private LoxString append(CharSequence right) {
+        // Parallel tasks may extend the same string, the buffer is locked while in use.
+        // Only one buffer is locked at a time, a LoxString operand is flattened first.
+        if (right instanceof LoxString) right = right.toString();
+        synchronized (buffer) {
+            // Only the newest string may grow the shared buffer,
+            // older ones would see characters that aren't theirs otherwise
+            if (buffer.length() == length) {
+                buffer.append(right);
+                return new LoxString(buffer, buffer.length());
+            }
+
+            StringBuilder copy = new StringBuilder((length + right.length()) * 2);
+            copy.append(buffer, 0, length).append(right);
+            return new LoxString(copy, copy.length());
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+        // the buffer may be growing in another thread
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) {
+            synchronized (buffer) {
+                flat = buffer.substring(0, length);
+            }
+        }
+        return flat;
+    }
+
+    /**
+     * Equal to a String or LoxString with the same characters,
+     * so the hashCode has to be the one of String
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (other instanceof LoxString || other instanceof String) {
+            return toString().equals(other.toString());
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -0,0 +1,54 @@
+package lox;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The Task value, the handle spawn() returns for a function running on its own virtual thread
+ */
+class LoxTask {
+    private final Future<Object> result;
+    // counted by the task's Interpreter, added on the awaiting thread
+    private final Metrics metrics;
+    private boolean counted = false;
+
+    LoxTask(Future<Object> result, Metrics metrics) {
+        this.result = result;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Waits for the function to return and returns its result.
+     * An error of the task is raised again in the awaiting code,
+     * with the message and line of where it happened.
+     * The task's counters go to the Interpreter that awaits it first,
+     * on that Interpreter's own thread.
+     */
+    Object join(Interpreter awaiting) {
+        try {
+            Object value = result.get();
+            count(awaiting);
+            return value;
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new NativeError("Interrupted while waiting for a task.");
+        } catch (ExecutionException error) {
+            count(awaiting);
+            Throwable cause = error.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private synchronized void count(Interpreter awaiting) {
+        if (counted) return;
+        counted = true;
+        awaiting.metrics.add(metrics);
+    }
+
+    @Override
+    public String toString() {
+        return "<task>";
+    }
+}
@@ -0,0 +1,23 @@
+package lox;
+
+import static lox.LoxNative.number;
+
+class MathModule implements NativeModule {
+    @Override
+    public void register(Interpreter interpreter) {
+        interpreter.definePureNative("abs", a -> Math.abs(number(a, "abs")));
+        interpreter.definePureNative("sqrt", a -> Math.sqrt(number(a, "sqrt")));
+        interpreter.definePureNative("floor", a -> Math.floor(number(a, "floor")));
+        interpreter.definePureNative("ceil", a -> Math.ceil(number(a, "ceil")));
+        interpreter.definePureNative("round", a -> (double)Math.round(number(a, "round")));
+        interpreter.definePureNative("sin", a -> Math.sin(number(a, "sin")));
+        interpreter.definePureNative("cos", a -> Math.cos(number(a, "cos")));
+        interpreter.definePureNative("tan", a -> Math.tan(number(a, "tan")));
+        interpreter.definePureNative("exp", a -> Math.exp(number(a, "exp")));
+        interpreter.definePureNative("log", a -> Math.log(number(a, "log")));
+        interpreter.definePureNative("min", (a, b) -> Math.min(number(a, "min"), number(b, "min")));
+        interpreter.definePureNative("max", (a, b) -> Math.max(number(a, "max"), number(b, "max")));
+        interpreter.definePureNative("pow", (a, b) -> Math.pow(number(a, "pow"), number(b, "pow")));
+        interpreter.defineNative("random", () -> Math.random());
+    }
+}
@@ -0,0 +1,124 @@
+package lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of one Interpreter.
+ * They are plain fields updated by the thread running the Interpreter,
+ * a JMX client may see them a little late but never pays for a lock.
+ * Parallel tasks count in Metrics of their own, which are added to the
+ * script's once the script has waited for them, see add().
+ */
+class Metrics implements MetricsMXBean {
+    long scriptsRun = 0;
+    long statementsExecuted = 0;
+    long calls = 0;
+    long environmentsAllocated = 0;
+    // blocks that ran without allocating an Environment
+    long environmentsElided = 0;
+    // evaluations of loop invariants that reused the value
+    long invariantsReused = 0;
+
+    long scanTime = 0;
+    long parseTime = 0;
+    long resolveTime = 0;
+    long executeTime = 0;
+
+    private long runtimeErrors = 0;
+    private final Map<String, Long> runtimeErrorsByKind = new HashMap<>();
+
+    /**
+     * Makes the counters visible to jconsole, VisualVM and other JMX clients
+     */
+    void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(this, new ObjectName("lox:type=Interpreter"));
+    }
+
+    /**
+     * Adds the counters of finished parallel tasks. The tasks of one parallelMap()
+     * call finish on several threads while the script waits for them,
+     * a spawned task is added by the code that awaits it.
+     */
+    synchronized void add(Metrics task) {
+        statementsExecuted += task.statementsExecuted;
+        calls += task.calls;
+        environmentsAllocated += task.environmentsAllocated;
+        environmentsElided += task.environmentsElided;
+        invariantsReused += task.invariantsReused;
+    }
+
+    /**
+     * Errors are grouped by their message without names and numbers,
+     * e.g. "Undefined variable '?'."
+     */
+    synchronized void runtimeError(RuntimeError error) {
+        runtimeErrors++;
+        String kind = error.getMessage().replaceAll("'[^']*'", "'?'").replaceAll("[0-9]+", "N");
+        runtimeErrorsByKind.merge(kind, 1L, Long::sum);
+    }
+
+    @Override
+    public long getScriptsRun() {
+        return scriptsRun;
+    }
+
+    @Override
+    public long getStatementsExecuted() {
+        return statementsExecuted;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls;
+    }
+
+    @Override
+    public long getEnvironmentsAllocated() {
+        return environmentsAllocated;
+    }
+
+    @Override
+    public long getEnvironmentsElided() {
+        return environmentsElided;
+    }
+
+    @Override
+    public long getLoopInvariantsReused() {
+        return invariantsReused;
+    }
+
+    @Override
+    public synchronized long getRuntimeErrors() {
+        return runtimeErrors;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getRuntimeErrorsByKind() {
+        return new HashMap<>(runtimeErrorsByKind);
+    }
+
+    @Override
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    @Override
+    public long getParseTime() {
+        return parseTime;
+    }
+
+    @Override
+    public long getResolveTime() {
+        return resolveTime;
+    }
+
+    @Override
+    public long getExecuteTime() {
+        return executeTime;
+    }
+}
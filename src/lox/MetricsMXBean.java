@@ -0,0 +1,22 @@
+package lox;
+
+import java.util.Map;
+
+/**
+ * The interpreter counters as seen through JMX, under lox:type=Interpreter.
+ * Times are in nanoseconds and add up over all runs.
+ */
+public interface MetricsMXBean {
+    long getScriptsRun();
+    long getStatementsExecuted();
+    long getCalls();
+    long getEnvironmentsAllocated();
+    long getEnvironmentsElided();
+    long getLoopInvariantsReused();
+    long getRuntimeErrors();
+    Map<String, Long> getRuntimeErrorsByKind();
+    long getScanTime();
+    long getParseTime();
+    long getResolveTime();
+    long getExecuteTime();
+}
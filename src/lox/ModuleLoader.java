@@ -0,0 +1,81 @@
+package lox;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads the modules of import statements, paths are relative to the importing file.
+ * A script and the modules it imports share one loader, so a module is scanned,
+ * parsed and resolved once, every import of it binds the same LoxModule.
+ * A file that changed since is loaded again.
+ *
+ * The tokens are also cached for the whole process, keyed by path and modification
+ * time, so the scripts of a Daemon don't scan a shared module again. The parsed
+ * code isn't shared between scripts, its sites keep the cells of their namespace.
+ */
+class ModuleLoader {
+    /**
+     * The tokens of a file as it was when it was scanned
+     */
+    private static class Source {
+        final long modified;
+        final List<Token> tokens;
+
+        Source(long modified, List<Token> tokens) {
+            this.modified = modified;
+            this.tokens = tokens;
+        }
+    }
+
+    private static final Map<Path, Source> sources = new ConcurrentHashMap<>();
+
+    private final Map<Path, LoxModule> modules = new HashMap<>();
+
+    synchronized LoxModule load(Interpreter importer, Stmt.Import stmt) {
+        Token path = stmt.path;
+        Path file = importer.directory.resolve((String)path.literal).toAbsolutePath().normalize();
+        long modified;
+        try {
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException error) {
+            throw new RuntimeError(path, "Can't read module '" + path.literal + "'.");
+        }
+
+        LoxModule module = modules.get(file);
+        if (module != null && module.modified == modified) return module;
+
+        List<Token> tokens = tokens(file, modified, path);
+        Parser parser = new Parser(tokens);
+        List<Stmt> statements = parser.parse();
+        Interpreter interpreter = importer.module(file.getParent());
+        if (Lox.hadError() || !Lox.compile(statements, interpreter.globals, parser.names(), parser.spawns())) {
+            throw new RuntimeError(path, "Module '" + path.literal + "' has errors.");
+        }
+
+        module = new LoxModule(stmt.name.lexeme, modified, interpreter, statements);
+        modules.put(file, module);
+        return module;
+    }
+
+    private static List<Token> tokens(Path file, long modified, Token path) {
+        Source source = sources.get(file);
+        if (source != null && source.modified == modified) return source.tokens;
+
+        String text;
+        try {
+            text = new String(Files.readAllBytes(file), Charset.defaultCharset());
+        } catch (IOException error) {
+            throw new RuntimeError(path, "Can't read module '" + path.literal + "'.");
+        }
+        List<Token> tokens = List.copyOf(new Scanner(text).scanTokens());
+        // a file with errors is scanned again, to report them again
+        if (!Lox.hadError()) sources.put(file, new Source(modified, tokens));
+        return tokens;
+    }
+}
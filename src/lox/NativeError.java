@@ -0,0 +1,11 @@
+package lox;
+
+/**
+ * Thrown by natives, which don't know the Token of their call site.
+ * The Interpreter turns it into a RuntimeError at the call's parenthesis.
+ */
+class NativeError extends RuntimeException {
+    NativeError(String message) {
+        super(message);
+    }
+}
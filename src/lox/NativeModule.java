@@ -0,0 +1,8 @@
+package lox;
+
+/**
+ * A group of natives that can be installed into an Interpreter
+ */
+interface NativeModule {
+    void register(Interpreter interpreter);
+}
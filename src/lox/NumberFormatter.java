@@ -0,0 +1,129 @@
+package lox;
+
+/**
+ * Formats Lox numbers without going through Double.toString().
+ * Integral values are written as longs. Other values in the range where
+ * Double.toString() uses plain notation get the shortest decimal that
+ * reads back as the same double, found by trying more and more fraction
+ * digits and verifying each candidate exactly. Everything else falls back
+ * to Double.toString().
+ */
+class NumberFormatter {
+    // all of these are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    private static final long[] LONG_POWERS_OF_TEN = new long[19];
+
+    static {
+        double power = 1;
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = power;
+            power *= 10;
+        }
+        long longPower = 1;
+        for (int i = 0; i < LONG_POWERS_OF_TEN.length; i++) {
+            LONG_POWERS_OF_TEN[i] = longPower;
+            longPower *= 10;
+        }
+    }
+
+    private static final double TWO_TO_53 = 9007199254740992.0;
+    private static final double TWO_TO_63 = 9223372036854775808.0;
+    private static final int MAX_FRACTION_DIGITS = 20;
+
+    private NumberFormatter() {}
+
+    static void append(StringBuilder out, double value) {
+        if (value == (long)value && Math.abs(value) < TWO_TO_63) {
+            // -0.0 == 0 but has to keep its sign
+            if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+                out.append("-0");
+            } else {
+                out.append((long)value);
+            }
+            return;
+        }
+
+        double magnitude = Math.abs(value);
+        if (magnitude >= 1e-3 && magnitude < 1e7 && appendShortest(out, value, magnitude)) {
+            return;
+        }
+
+        // NaN, Infinity, scientific notation and the rare number
+        // where no verified candidate was found
+        String numberString = Double.toString(value);
+        if (numberString.endsWith(".0")) {
+            numberString = numberString.substring(0, numberString.length() - 2);
+        }
+        out.append(numberString);
+    }
+
+    private static boolean appendShortest(StringBuilder out, double value, double magnitude) {
+        for (int digits = 1; digits <= MAX_FRACTION_DIGITS; digits++) {
+            double scale = POWERS_OF_TEN[digits];
+            // magnitude * scale exactly, as product + error
+            double product = magnitude * scale;
+            double error = Math.fma(magnitude, scale, -product);
+            if (product >= 1e17) return false;
+
+            double floor = Math.floor(product);
+            long candidate = (long)floor + Math.round((product - floor) + error);
+
+            if (readsBack(candidate, digits, magnitude, product, error)) {
+                appendDecimal(out, value < 0, candidate, digits);
+                return true;
+            }
+            // Next to a power of two the interval below is smaller,
+            // so the candidate on the other side can still be closer
+            long other = candidate + (candidate < product + error ? 1 : -1);
+            if (readsBack(other, digits, magnitude, product, error)) {
+                appendDecimal(out, value < 0, other, digits);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if candidate / 10^digits is parsed back to magnitude
+     */
+    private static boolean readsBack(long candidate, int digits, double magnitude,
+                                     double product, double error) {
+        if (candidate < TWO_TO_53) {
+            // One correctly rounded division of exact operands,
+            // which is exactly what parsing the decimal does
+            return candidate / POWERS_OF_TEN[digits] == magnitude;
+        }
+
+        // The product is an integer here, the distance to the candidate
+        // has to stay below half an ulp of the value, scaled by 10^digits
+        double distance = (double)(candidate - (long)product) - error;
+        double half = Math.ulp(magnitude) * POWERS_OF_TEN[digits] / 2;
+        // ties and near ties are left to a longer candidate
+        return Math.abs(distance) < half * (1 - 0x1p-20);
+    }
+
+    private static void appendDecimal(StringBuilder out, boolean negative, long digits, int fractionDigits) {
+        // Drop trailing zeros, the shortest candidate normally has none
+        while (fractionDigits > 1 && digits % 10 == 0) {
+            digits /= 10;
+            fractionDigits--;
+        }
+
+        // digits < 10^17, so with more fraction digits there is no integer part
+        long integer = 0;
+        long fraction = digits;
+        if (fractionDigits < LONG_POWERS_OF_TEN.length) {
+            integer = digits / LONG_POWERS_OF_TEN[fractionDigits];
+            fraction = digits % LONG_POWERS_OF_TEN[fractionDigits];
+        }
+
+        if (negative) out.append('-');
+        out.append(integer).append('.');
+        int width = 1;
+        while (width < LONG_POWERS_OF_TEN.length && fraction >= LONG_POWERS_OF_TEN[width]) width++;
+        for (int i = width; i < fractionDigits; i++) {
+            out.append('0');
+        }
+        out.append(fraction);
+    }
+}
@@ -0,0 +1,10 @@
+package lox;
+
+/**
+ * Where print statements write to.
+ * Implementations buffer, the output is only guaranteed to be visible after flush().
+ */
+interface OutputSink {
+    void println(CharSequence text);
+    void flush();
+}
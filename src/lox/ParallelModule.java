@@ -0,0 +1,123 @@
+package lox;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * parallelMap(list, function) calls the function on every element on the common
+ * ForkJoinPool and returns a new list of the results, in the order of the elements.
+ *
+ * The list is split into ranges, every range runs on its own Interpreter that
+ * shares the globals but has its own Environment chain, so the tasks only share
+ * what the script hands them. Functions that assign a global or a variable of an
+ * enclosing function would race on it and are rejected: the Resolver marks them,
+ * the mapped function is checked up front and any other one when a task calls it.
+ * Results are combined by the caller, e.g. summed over the returned list.
+ * Lists, maps and instances the tasks mutate are not synchronized.
+ */
+class ParallelModule implements NativeModule {
+    // ranges per thread of the pool, so threads that finish early can steal work
+    private static final int RANGES_PER_THREAD = 4;
+
+    @Override
+    public void register(Interpreter interpreter) {
+        interpreter.defineNative("parallelMap", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 2;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return parallelMap(interpreter, arguments.get(0), arguments.get(1));
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+    }
+
+    private static LoxArray parallelMap(Interpreter interpreter, Object list, Object function) {
+        if (!(list instanceof LoxArray)) {
+            throw new NativeError("First argument to 'parallelMap' must be a list.");
+        }
+        LoxCallable callable = function(interpreter, function);
+
+        LoxArray elements = (LoxArray)list;
+        Object[] results = new Object[elements.size()];
+        int ranges = ForkJoinPool.getCommonPoolParallelism() * RANGES_PER_THREAD;
+        int grain = Math.max(1, results.length / ranges);
+        interpreter.synchronizeOutput();
+        ForkJoinPool.commonPool().invoke(new MapTask(interpreter, Lox.current(), callable,
+                elements, results, 0, results.length, grain));
+
+        LoxArray mapped = new LoxArray(results.length);
+        for (Object result : results) {
+            mapped.append(result);
+        }
+        return mapped;
+    }
+
+    private static LoxCallable function(Interpreter interpreter, Object function) {
+        if (!(function instanceof LoxFunction) && !(function instanceof LoxNative)) {
+            throw new NativeError("Second argument to 'parallelMap' must be a function.");
+        }
+        LoxCallable callable = (LoxCallable)function;
+        if (callable.arity() != 1) {
+            throw new NativeError("The function passed to 'parallelMap' must take one argument.");
+        }
+        if (callable instanceof LoxFunction && ((LoxFunction)callable).assignsOuter()) {
+            throw new NativeError(
+                    "The function passed to 'parallelMap' can't assign variables declared outside of it.");
+        }
+        return callable;
+    }
+
+    /**
+     * Maps the elements from start to end, split in halves down to the grain size
+     */
+    private static class MapTask extends RecursiveAction {
+        private final Interpreter parent;
+        private final Lox lox;
+        private final LoxCallable function;
+        private final LoxArray elements;
+        private final Object[] results;
+        private final int start;
+        private final int end;
+        private final int grain;
+
+        MapTask(Interpreter parent, Lox lox, LoxCallable function,
+                LoxArray elements, Object[] results, int start, int end, int grain) {
+            this.parent = parent;
+            this.lox = lox;
+            this.function = function;
+            this.elements = elements;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > grain) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new MapTask(parent, lox, function, elements, results, start, middle, grain),
+                        new MapTask(parent, lox, function, elements, results, middle, end, grain));
+                return;
+            }
+
+            Interpreter task = new Interpreter(parent);
+            Lox.runAs(lox, () -> {
+                for (int i = start; i < end; i++) {
+                    results[i] = function.call(task, Collections.singletonList(elements.get(i)));
+                }
+            });
+            parent.metrics.add(task.metrics);
+        }
+    }
+}
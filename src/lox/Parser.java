@@ -2,7 +2,9 @@ package lox;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import static lox.TokenType.*;
 
 /**
@@ -11,11 +13,44 @@ import static lox.TokenType.*;
 public class Parser {
     private static class ParseError extends RuntimeException {}
 
+    // Bodies of top-level functions with more tokens than this are only
+    // optimized on the first call, see LazyBody
+    private static final int LAZY_MIN_TOKENS = Integer.getInteger("lox.lazy.minTokens", 64);
+
     private final List<Token> tokens;
     private int current = 0;
+    // blocks around the current token, functions at depth 0 have no upvalues
+    private int depth = 0;
+    // names assigned inside lazy bodies, shared with their LazyBody
+    private final Set<String> names = new HashSet<>();
+    // the script's tasks may read globals while the script assigns them
+    private final boolean spawns;
 
     Parser(List<Token> tokens) {
         this.tokens = tokens;
+        this.spawns = mentions(tokens, "spawn");
+    }
+
+    private static boolean mentions(List<Token> tokens, String name) {
+        for (Token token : tokens) {
+            if(token.type == IDENTIFIER && token.lexeme.equals(name)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Names assigned in the bodies that weren't optimized yet.
+     * The LoopOptimizer adds the ones of the code it optimizes.
+     */
+    Set<String> names() {
+        return names;
+    }
+
+    /**
+     * If the script mentions spawn(), so a loop may run in a task, see LoopOptimizer
+     */
+    boolean spawns() {
+        return spawns;
     }
 
     List<Stmt> parse() {
@@ -32,8 +67,10 @@ public class Parser {
 
     private Stmt declaration() {
         try {
+            if(match(CLASS)) return classDeclaration();
             if(match(FUN)) return function("function");
             if(match(VAR)) return varDeclaration();
+            if(match(IMPORT)) return importDeclaration();
             return statement();
         } catch (ParseError error) {
             synchronize();
@@ -41,6 +78,33 @@ public class Parser {
         }
     }
 
+    private Stmt classDeclaration() {
+        Token name = consume(IDENTIFIER, "Expect class name.");
+
+        Expr.Variable superclass = null;
+        if(match(LESS)) {
+            consume(IDENTIFIER, "Expect superclass name.");
+            superclass = new Expr.Variable(previous());
+        }
+
+        consume(LEFT_BRACE, "Expect '{' before class body.");
+
+        List<Token> fields = new ArrayList<>();
+        List<Stmt.Function> methods = new ArrayList<>();
+        while(!check(RIGHT_BRACE) && !isAtEnd()) {
+            // Declared fields are part of the initial Shape of every instance
+            if(match(VAR)) {
+                fields.add(consume(IDENTIFIER, "Expect field name."));
+                consume(SEMICOLON, "Expect ';' after field declaration.");
+            } else {
+                methods.add(function("method"));
+            }
+        }
+
+        consume(RIGHT_BRACE, "Expect '}' after class body.");
+        return new Stmt.Class(name, superclass, fields, methods);
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name.");
 
@@ -53,12 +117,30 @@ public class Parser {
         return new Stmt.Var(name, initializer);
     }
 
+    /**
+     * import "path"; binds the module to the name of its file without '.lox'
+     */
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'import'.");
+        consume(SEMICOLON, "Expect ';' after module path.");
+
+        String file = (String)path.literal;
+        file = file.substring(file.lastIndexOf('/') + 1);
+        String name = file.endsWith(".lox") ? file.substring(0, file.length() - 4) : file;
+        if(!Scanner.isIdentifier(name)) {
+            throw error(path, "The file name of a module must be an identifier.");
+        }
+        return new Stmt.Import(keyword, path, new Token(IDENTIFIER, name, null, path.line));
+    }
+
     private Stmt statement() {
         if(match(FOR)) return forStatement();
         if(match(IF)) return ifStatement();
         if(match(PRINT)) return printStatement();
         if (match(RETURN)) return returnStatement();
         if(match(WHILE)) return whileStatement();
+        if(match(YIELD)) return yieldStatement();
         if(match(LEFT_BRACE)) return new Stmt.Block(block());
 
         return expressionStatement();
@@ -93,6 +175,13 @@ public class Parser {
         return new Stmt.Return(keyword, value);
     }
 
+    private Stmt yieldStatement() {
+        Token keyword = previous();
+        Expr value = expression();
+        consume(SEMICOLON, "Expect ';' after yield value.");
+        return new Stmt.Yield(keyword, value);
+    }
+
     private Stmt whileStatement() {
         consume(LEFT_PARENTHESES, "Expect '(' after 'while'.");
         Expr condition = expression();
@@ -127,12 +216,10 @@ public class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-        }
-
+        // With a fused condition and increment this is a counted loop
+        // that runs without the While + Block + Expression wrapping
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.For(condition, body, increment);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -145,7 +232,7 @@ public class Parser {
     private Stmt expressionStatement() {
         Expr value = expression();
         consume(SEMICOLON, "Expect ';' after value.");
-        return new Stmt.Print(value);
+        return new Stmt.Expression(value);
     }
 
     private Stmt.Function function(String kind) {
@@ -166,16 +253,45 @@ public class Parser {
         consume(RIGHT_PARENTHESES, "Expect ')' after parameters.");
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
 
+        int start = current;
         List<Stmt> body = block();
+        // A large top-level body is resolved with the script,
+        // but only optimized if the function is called
+        if(depth == 0 && kind.equals("function") && current - start > LAZY_MIN_TOKENS) {
+            recordAssignments(start, current - 1);
+            Stmt.Function function = new Stmt.Function(name, parameters, new ArrayList<>());
+            function.lazy = new LazyBody(body, names, spawns);
+            return function;
+        }
         return new Stmt.Function(name, parameters, body);
     }
 
+    /**
+     * Records the names assigned between the braces of a lazy body,
+     * the LoopOptimizer of the script doesn't see them.
+     */
+    private void recordAssignments(int start, int end) {
+        for (int i = start; i < end; i++) {
+            Token token = tokens.get(i);
+            if(token.type != IDENTIFIER || tokens.get(i - 1).type == DOT) continue;
+
+            TokenType next = tokens.get(i + 1).type;
+            TokenType before = tokens.get(i - 1).type;
+            if(next == EQUAL || next == PLUS_PLUS || next == MINUS_MINUS
+                    || before == PLUS_PLUS || before == MINUS_MINUS) {
+                names.add(token.lexeme);
+            }
+        }
+    }
+
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
 
+        depth++;
         while(!check(RIGHT_BRACE) && !isAtEnd()) {
             statements.add(declaration());
         }
+        depth--;
 
         consume(RIGHT_BRACE, "Expect '}' after block.");
         return statements;
@@ -190,7 +306,14 @@ public class Parser {
 
             if(expr instanceof Expr.Variable) {
                 Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
+                Expr assign = new Expr.Assign(name, value);
+                return fuseIncrement(name, value, assign);
+            } else if(expr instanceof Expr.Get) {
+                Expr.Get get = (Expr.Get)expr;
+                return new Expr.Set(get.object, get.name, value);
+            } else if(expr instanceof Expr.Index) {
+                Expr.Index index = (Expr.Index)expr;
+                return new Expr.IndexSet(index.object, index.bracket, index.index, value);
             }
 
             error(equals, "Invalid assignment target.");
@@ -199,6 +322,30 @@ public class Parser {
         return expr;
     }
 
+    /**
+     * Superinstruction for 'i = i + c' and 'i = i - c' with a number literal c.
+     * The Assign is kept as fallback for variables that don't hold a number,
+     * e.g. string concatenation.
+     */
+    private Expr fuseIncrement(Token name, Expr value, Expr assign) {
+        if(!(value instanceof Expr.Binary)) return assign;
+
+        Expr.Binary binary = (Expr.Binary)value;
+        if(!(binary.left instanceof Expr.Variable)
+                || !((Expr.Variable)binary.left).name.lexeme.equals(name.lexeme)) return assign;
+        if(!(binary.right instanceof Expr.Literal)
+                || !(((Expr.Literal)binary.right).value instanceof Double)) return assign;
+
+        double constant = (double)((Expr.Literal)binary.right).value;
+        if(binary.operator.type == PLUS) {
+            return new Expr.Increment(name, binary.operator, constant, true, assign);
+        }
+        if(binary.operator.type == MINUS) {
+            return new Expr.Increment(name, binary.operator, -constant, true, assign);
+        }
+        return assign;
+    }
+
     private Expr or() {
         Expr expr =  and();
         while(match(OR)) {
@@ -234,7 +381,14 @@ public class Parser {
         while(match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
             Token operator = previous();
             Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+            // Superinstruction for comparing a variable with a number literal
+            if(expr instanceof Expr.Variable && right instanceof Expr.Literal
+                    && ((Expr.Literal)right).value instanceof Double) {
+                expr = new Expr.CompareConstant(((Expr.Variable)expr).name, operator,
+                        (double)((Expr.Literal)right).value);
+            } else {
+                expr = new Expr.Binary(expr, operator, right);
+            }
         }
         return expr;
     }
@@ -265,7 +419,29 @@ public class Parser {
             Expr right = unary();
             return new Expr.Unary(operator, right);
         }
-        return call();
+        if(match(PLUS_PLUS, MINUS_MINUS)) {
+            Token operator = previous();
+            Expr right = unary();
+            return increment(operator, right, true);
+        }
+        return postfix();
+    }
+
+    private Expr postfix() {
+        Expr expr = call();
+        if(match(PLUS_PLUS, MINUS_MINUS)) {
+            return increment(previous(), expr, false);
+        }
+        return expr;
+    }
+
+    private Expr increment(Token operator, Expr target, boolean prefix) {
+        if(!(target instanceof Expr.Variable)) {
+            error(operator, "Invalid increment target.");
+            return target;
+        }
+        double delta = operator.type == PLUS_PLUS ? 1 : -1;
+        return new Expr.Increment(((Expr.Variable)target).name, operator, delta, prefix, null);
     }
 
     private Expr finishCall(Expr callee) {
@@ -285,6 +461,11 @@ public class Parser {
         // This is the case when no arguments are provided: 0 argument func call.
         Token parentheses = consume(RIGHT_PARENTHESES, "Expect ')' after arguments.");
 
+        // obj.method(...) calls the method without creating a bound method first
+        if(callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)callee;
+            return new Expr.Invoke(get.object, get.name, parentheses, arguments);
+        }
         return new Expr.Call(callee, parentheses, arguments);
     }
 
@@ -294,6 +475,13 @@ public class Parser {
         while(true) {
             if(match(LEFT_PARENTHESES)) {
                 expr = finishCall(expr);
+            } else if(match(DOT)) {
+                Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+                expr = new Expr.Get(expr, name);
+            } else if(match(LEFT_BRACKET)) {
+                Expr index = expression();
+                Token bracket = consume(RIGHT_BRACKET, "Expect ']' after index.");
+                expr = new Expr.Index(expr, bracket, index);
             } else {
                 break;
             }
@@ -306,7 +494,17 @@ public class Parser {
         if(match(TRUE)) return new Expr.Literal(true);
         if(match(NIL)) return new Expr.Literal(null);
         if(match(NUMBER, STRING)) return new Expr.Literal(previous().literal);
+        if(match(SUPER)) {
+            Token keyword = previous();
+            consume(DOT, "Expect '.' after 'super'.");
+            Token method = consume(IDENTIFIER, "Expect superclass method name.");
+            return new Expr.Super(keyword, method);
+        }
+        if(match(THIS)) return new Expr.This(previous());
         if(match(IDENTIFIER)) return new Expr.Variable(previous());
+        if(match(LEFT_BRACKET)) return array();
+        // A '{' can't start an expression otherwise, so there is no clash with blocks
+        if(match(LEFT_BRACE)) return map();
         if(match(LEFT_PARENTHESES)) {
             Expr expr = expression();
             consume(RIGHT_PARENTHESES, "Expect ')' after expression.");
@@ -315,6 +513,33 @@ public class Parser {
         throw error(peek(), "Expect expression.");
     }
 
+    private Expr array() {
+        Token bracket = previous();
+        List<Expr> elements = new ArrayList<>();
+        if(!check(RIGHT_BRACKET)) {
+            do {
+                elements.add(expression());
+            } while(match(COMMA));
+        }
+        consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+        return new Expr.Array(bracket, elements);
+    }
+
+    private Expr map() {
+        Token brace = previous();
+        List<Expr> keys = new ArrayList<>();
+        List<Expr> values = new ArrayList<>();
+        if(!check(RIGHT_BRACE)) {
+            do {
+                keys.add(expression());
+                consume(COLON, "Expect ':' after map key.");
+                values.add(expression());
+            } while(match(COMMA));
+        }
+        consume(RIGHT_BRACE, "Expect '}' after map entries.");
+        return new Expr.Map(brace, keys, values);
+    }
+
     private boolean match(TokenType... types) {
         for(TokenType type: types) {
             if(check(type)) {
@@ -363,17 +588,17 @@ public class Parser {
     private void synchronize() {
         advance();
 
-        // If the last Token is a semicolon, we're at the beginning of a new Statement
         while(!isAtEnd()) {
+            // If the last Token is a semicolon, we're at the beginning of a new Statement
             if (previous().type == SEMICOLON) return;
-        }
 
-        switch (peek().type) {
-            case CLASS: case FOR: case FUN: case IF:
-            case PRINT: case RETURN: case VAR: case WHILE:
-                return;
+            switch (peek().type) {
+                case CLASS: case FOR: case FUN: case IF:
+                case PRINT: case RETURN: case VAR: case WHILE: case YIELD: case IMPORT:
+                    return;
+            }
+            advance();
         }
-        advance();
     }
 
 }
@@ -0,0 +1,38 @@
+package lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for a phase of Lox.run: scan, parse, resolve or execute
+ */
+@Name("lox.Phase")
+@Label("Lox Phase")
+@Category("Lox")
+@Description("A phase of running a script or REPL line")
+class PhaseEvent extends jdk.jfr.Event {
+    @Label("Phase")
+    String phase;
+
+    // not part of the event, the Metrics need the time even without a recording
+    private transient long start;
+
+    static PhaseEvent start(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.start = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commits the event if it's recorded and returns the duration in nanoseconds
+     */
+    long finish() {
+        end();
+        if (shouldCommit()) commit();
+        return System.nanoTime() - start;
+    }
+}
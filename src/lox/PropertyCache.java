@@ -0,0 +1,42 @@
+package lox;
+
+/**
+ * Inline cache of a property access site (Expr.Get or Expr.Set), keyed by Shape.
+ * It remembers up to four Shapes, one is the monomorphic case and up to four the
+ * polymorphic one. A site that sees more Shapes is megamorphic and always takes
+ * the slow path through the Shape's slot map.
+ */
+class PropertyCache {
+    private static final int SIZE = 4;
+
+    final Shape[] shapes = new Shape[SIZE];
+    // the slot of the field, or -1 if the property is a method
+    final int[] slots = new int[SIZE];
+    // Get: the method found for the Shape
+    final LoxFunction[] methods = new LoxFunction[SIZE];
+    // Set: the Shape after the store, different from the cached one if the field is added
+    final Shape[] targets = new Shape[SIZE];
+    // written after the entry it counts, parallel tasks that read it see complete entries
+    volatile int count = 0;
+
+    void addField(Shape shape, int slot) {
+        add(shape, slot, null, shape);
+    }
+
+    void addMethod(Shape shape, LoxFunction method) {
+        add(shape, -1, method, shape);
+    }
+
+    void addStore(Shape shape, int slot, Shape target) {
+        add(shape, slot, null, target);
+    }
+
+    private synchronized void add(Shape shape, int slot, LoxFunction method, Shape target) {
+        if (count == SIZE) return;
+        shapes[count] = shape;
+        slots[count] = slot;
+        methods[count] = method;
+        targets[count] = target;
+        count++;
+    }
+}
@@ -0,0 +1,645 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Static pass between the Parser and the Interpreter.
+ * It finds the free variables of every function, so a LoxFunction
+ * only captures the upvalues it uses instead of the whole Environment chain,
+ * and it decides which locals need a shared Upvalue cell.
+ */
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType {
+        NONE,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private enum ClassType {
+        NONE,
+        CLASS,
+        SUBCLASS
+    }
+
+    /**
+     * Everything the Resolver knows about a declared local variable
+     */
+    private static class Local {
+        // null for 'this' and 'super'
+        final Stmt declaration;
+        // -1 for the name of a variable or function, otherwise the parameter index
+        final int parameter;
+        boolean defined = false;
+        boolean captured = false;
+        boolean assigned = false;
+        // a closure declared earlier in the scope refers to it, see forward()
+        boolean forward = false;
+
+        Local(Stmt declaration, int parameter) {
+            this.declaration = declaration;
+            this.parameter = parameter;
+        }
+    }
+
+    /**
+     * The function whose body is currently resolved
+     */
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        final Stmt.Function declaration;
+        // index of the parameter scope in the scopes Stack
+        final int depth;
+        final Set<String> upvalues = new LinkedHashSet<>();
+        // 'return value;' is an error if the function turns out to be a generator
+        final List<Token> valueReturns = new ArrayList<>();
+
+        FunctionScope(FunctionScope enclosing, Stmt.Function declaration, int depth) {
+            this.enclosing = enclosing;
+            this.declaration = declaration;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * A name a closure didn't find, a later local of an enclosing scope may declare it
+     */
+    private static class Reference {
+        final Token name;
+        final FunctionScope function;
+        final Expr site;
+
+        Reference(Token name, FunctionScope function, Expr site) {
+            this.name = name;
+            this.function = function;
+            this.site = site;
+        }
+    }
+
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    // per scope, the References of closures inside it that are still unresolved
+    private final Stack<List<Reference>> references = new Stack<>();
+    private FunctionScope currentFunction = null;
+    private FunctionType currentType = FunctionType.NONE;
+    private ClassType currentClass = ClassType.NONE;
+
+    void resolve(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            resolve(statement);
+        }
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        resolve(stmt.statements);
+        markElided(stmt);
+        stmt.forward = endScope();
+        return null;
+    }
+
+    /**
+     * Escape analysis for blocks.
+     * If no closure captures a local of the block, its variables can live in the
+     * Environment of the enclosing frame for the duration of the block.
+     * Top-level blocks keep their own Environment, the frame there is the globals.
+     */
+    private void markElided(Stmt.Block stmt) {
+        Map<String, Local> scope = scopes.peek();
+        boolean topLevel = currentFunction == null && scopes.size() == 1;
+        boolean escapes = false;
+        for (Local local : scope.values()) {
+            if (local.captured) escapes = true;
+        }
+
+        stmt.elided = !topLevel && !escapes;
+        stmt.locals = new ArrayList<>(scope.keySet());
+        stmt.shadowed = new ArrayList<>();
+
+        // Names of the same frame the block hides have to be restored after it
+        int frame = currentFunction == null ? 0 : currentFunction.depth;
+        for (String name : stmt.locals) {
+            for (int i = frame; i < scopes.size() - 1; i++) {
+                if (scopes.get(i).containsKey(name)) {
+                    stmt.shadowed.add(name);
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        ClassType enclosingClass = currentClass;
+        currentClass = ClassType.CLASS;
+
+        declare(stmt.name, stmt, -1);
+        define(stmt.name);
+
+        if (stmt.superclass != null) {
+            if (stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+                Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+            }
+            currentClass = ClassType.SUBCLASS;
+            resolve(stmt.superclass);
+
+            beginScope();
+            defineKeyword("super");
+        }
+
+        beginScope();
+        defineKeyword("this");
+
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType declaration = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                declaration = FunctionType.INITIALIZER;
+            }
+            resolveFunction(method, declaration);
+        }
+
+        endScope();
+        if (stmt.superclass != null) endScope();
+
+        currentClass = enclosingClass;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // Define the name eagerly, so the function can refer to itself
+        declare(stmt.name, stmt, -1);
+        define(stmt.name);
+
+        resolveFunction(stmt, FunctionType.FUNCTION);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declare(stmt.name, stmt, -1);
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+        define(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (currentType == FunctionType.NONE) {
+            Lox.error(stmt.keyword, "Can't return from top-level code.");
+        }
+
+        if (stmt.value != null) {
+            if (currentType == FunctionType.INITIALIZER) {
+                Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+            }
+            if (currentFunction != null) currentFunction.valueReturns.add(stmt.keyword);
+            resolve(stmt.value);
+        }
+        return null;
+    }
+
+    /**
+     * A function with a yield in its own body is a generator
+     */
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        if (currentType == FunctionType.NONE) {
+            Lox.error(stmt.keyword, "Can't yield from top-level code.");
+        } else if (currentType == FunctionType.INITIALIZER) {
+            Lox.error(stmt.keyword, "Can't yield from an initializer.");
+        } else {
+            currentFunction.declaration.generator = true;
+        }
+        resolve(stmt.value);
+        return null;
+    }
+
+    /**
+     * The module is bound to a global, so imports can't be nested in blocks or functions
+     */
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        if (!scopes.isEmpty()) Lox.error(stmt.keyword, "Can only import at the top level.");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        Local local = resolveLocal(expr.name);
+        if (local != null) local.assigned = true;
+        expr.global = local == null;
+        if (expr.global) forward(expr.name, expr);
+        markOuterAssignment(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        expr.global = resolveRead(expr.name) == null;
+        if (expr.global) forward(expr.name, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        expr.global = resolveRead(expr.name) == null;
+        if (expr.global) forward(expr.name, expr);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        Local local = resolveRead(expr.name);
+        if (local != null) local.assigned = true;
+        expr.global = local == null;
+        if (expr.global) forward(expr.name, expr);
+        markOuterAssignment(expr.name);
+        if (expr.fallback != null) resolve(expr.fallback);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        resolve(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        resolve(expr.object);
+
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        resolve(expr.value);
+        resolve(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        if (currentClass == ClassType.NONE) {
+            Lox.error(expr.keyword, "Can't use 'super' outside of a class.");
+        } else if (currentClass != ClassType.SUBCLASS) {
+            Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+        }
+
+        resolveLocal(expr.keyword);
+        // the method is bound to 'this', a closure in the method has to capture it as well
+        if (currentClass != ClassType.NONE) {
+            resolveLocal(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        if (currentClass == ClassType.NONE) {
+            Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
+            return null;
+        }
+
+        resolveLocal(expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        for (Expr element : expr.elements) {
+            resolve(element);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitMapExpr(Expr.Map expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            resolve(expr.keys.get(i));
+            resolve(expr.values.get(i));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        resolve(expr.object);
+        resolve(expr.index);
+        resolve(expr.value);
+        return null;
+    }
+
+    /**
+     * Null for globals, the Interpreter reads those through a cached cell
+     */
+    private Local resolveRead(Token name) {
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().get(name.lexeme);
+            if (local != null && !local.defined) {
+                Lox.error(name, "Can't read local variable in its own initializer.");
+            }
+        }
+
+        return resolveLocal(name);
+    }
+
+    private void resolve(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void resolveFunction(Stmt.Function function, FunctionType type) {
+        FunctionScope enclosingFunction = currentFunction;
+        FunctionType enclosingType = currentType;
+        currentFunction = new FunctionScope(enclosingFunction, function, scopes.size());
+        currentType = type;
+
+        beginScope();
+        for (int i = 0; i < function.params.size(); i++) {
+            declare(function.params.get(i), function, i);
+            define(function.params.get(i));
+        }
+        function.boxedParams = new boolean[function.params.size()];
+        // a lazy body is resolved with the script, its declaration gets what is found
+        resolve(function.lazy == null ? function.body : function.lazy.body());
+        function.forward = endScope();
+
+        if (function.generator) {
+            for (Token keyword : currentFunction.valueReturns) {
+                Lox.error(keyword, "Can't return a value from a generator.");
+            }
+        }
+
+        function.upvalues = new ArrayList<>(currentFunction.upvalues);
+        currentFunction = enclosingFunction;
+        currentType = enclosingType;
+    }
+
+    private void beginScope() {
+        scopes.push(new HashMap<>());
+        references.push(new ArrayList<>());
+    }
+
+    /**
+     * Once a scope is done we know if a variable is captured and assigned.
+     * Only those need a shared Upvalue, all others are captured by value.
+     * Returns the locals closures refer to before their declaration,
+     * the Interpreter creates their cells when it enters the scope.
+     */
+    private List<String> endScope() {
+        List<Reference> unresolved = references.pop();
+        if (!references.isEmpty()) references.peek().addAll(unresolved);
+
+        List<String> forward = new ArrayList<>();
+        for (Map.Entry<String, Local> entry : scopes.pop().entrySet()) {
+            Local local = entry.getValue();
+            if (local.forward) forward.add(entry.getKey());
+            if (!local.captured || !local.assigned) continue;
+
+            if (local.declaration == null) continue;
+
+            if (local.declaration instanceof Stmt.Var) {
+                ((Stmt.Var)local.declaration).boxed = true;
+            } else if (local.declaration instanceof Stmt.Class) {
+                ((Stmt.Class)local.declaration).boxed = true;
+            } else if (local.parameter == -1) {
+                ((Stmt.Function)local.declaration).boxed = true;
+            } else {
+                ((Stmt.Function)local.declaration).boxedParams[local.parameter] = true;
+            }
+        }
+        return forward.isEmpty() ? List.of() : forward;
+    }
+
+    private void declare(Token name, Stmt declaration, int parameter) {
+        if (scopes.isEmpty()) return;
+
+        Map<String, Local> scope = scopes.peek();
+        if (scope.containsKey(name.lexeme)) {
+            Lox.error(name, "Already a variable with this name in this scope.");
+        }
+
+        Local local = new Local(declaration, parameter);
+        scope.put(name.lexeme, local);
+        resolveForward(name.lexeme, local);
+    }
+
+    /**
+     * A closure may call a local function declared after it in an enclosing scope,
+     * like two mutually recursive functions. The name isn't in scope yet, so it's
+     * remembered at the scope around the closure, in case a later local declares it.
+     */
+    private void forward(Token name, Expr site) {
+        if (currentFunction == null || currentFunction.depth == 0) return;
+        references.get(currentFunction.depth - 1).add(new Reference(name, currentFunction, site));
+    }
+
+    /**
+     * The closures that referred to the name before this declaration capture the
+     * local after all. Its cell exists from the start of the scope and is shared.
+     */
+    private void resolveForward(String name, Local local) {
+        int depth = scopes.size() - 1;
+        Iterator<Reference> pending = references.peek().iterator();
+        while (pending.hasNext()) {
+            Reference reference = pending.next();
+            if (!reference.name.lexeme.equals(name)) continue;
+            pending.remove();
+
+            local.forward = true;
+            local.captured = true;
+            local.assigned = true;
+            for (FunctionScope function = reference.function;
+                 function != null && function.depth > depth;
+                 function = function.enclosing) {
+                function.upvalues.add(name);
+                // a closure that is already resolved has its list
+                List<String> upvalues = function.declaration.upvalues;
+                if (upvalues != null && !upvalues.contains(name)) upvalues.add(name);
+            }
+
+            Expr site = reference.site;
+            if (site instanceof Expr.Variable) {
+                ((Expr.Variable)site).global = false;
+            } else if (site instanceof Expr.CompareConstant) {
+                ((Expr.CompareConstant)site).global = false;
+            } else if (site instanceof Expr.Assign) {
+                ((Expr.Assign)site).global = false;
+            } else {
+                ((Expr.Increment)site).global = false;
+            }
+        }
+    }
+
+    /**
+     * 'this' and 'super' are bound by the Interpreter, never assigned by the script
+     */
+    private void defineKeyword(String keyword) {
+        Local local = new Local(null, -1);
+        local.defined = true;
+        scopes.peek().put(keyword, local);
+    }
+
+    private void define(Token name) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().get(name.lexeme).defined = true;
+    }
+
+    /**
+     * Marks the functions that assign a variable declared outside of them,
+     * a global or a local of an enclosing function. Parallel tasks can only run
+     * those if the enclosing function runs in the same task, see LoxFunction.
+     */
+    private void markOuterAssignment(Token name) {
+        int depth = -1;
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).containsKey(name.lexeme)) {
+                depth = i;
+                break;
+            }
+        }
+
+        for (FunctionScope function = currentFunction;
+             function != null && function.depth > depth;
+             function = function.enclosing) {
+            function.declaration.assignsOuter = true;
+            function.declaration.assignsGlobal |= depth < 0;
+        }
+    }
+
+    /**
+     * Finds the innermost local with this name.
+     * If it's declared outside the current function, every function in between
+     * gets it as an upvalue.
+     * Returns null for globals, those are always looked up late.
+     */
+    private Local resolveLocal(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).get(name.lexeme);
+            if (local == null) continue;
+
+            for (FunctionScope function = currentFunction;
+                 function != null && function.depth > i;
+                 function = function.enclosing) {
+                function.upvalues.add(name.lexeme);
+                local.captured = true;
+                // A function that captures itself is created before its name is bound.
+                // Methods are created before their class, so every captured class is late.
+                if (function.declaration == local.declaration && local.parameter == -1
+                        || local.declaration instanceof Stmt.Class) {
+                    local.assigned = true;
+                }
+            }
+            return local;
+        }
+
+        return null;
+    }
+}
@@ -31,6 +31,8 @@ public class Scanner {
         keywords.put("true",   TokenType.TRUE);
         keywords.put("var",    TokenType.VAR);
         keywords.put("while",  TokenType.WHILE);
+        keywords.put("yield",  TokenType.YIELD);
+        keywords.put("import", TokenType.IMPORT);
     }
 
 
@@ -63,6 +65,9 @@ public class Scanner {
             case ')': addToken(TokenType.RIGHT_PARENTHESES); break;
             case '{': addToken(TokenType.LEFT_BRACE); break;
             case '}': addToken(TokenType.RIGHT_BRACE); break;
+            case '[': addToken(TokenType.LEFT_BRACKET); break;
+            case ']': addToken(TokenType.RIGHT_BRACKET); break;
+            case ':': addToken(TokenType.COLON); break;
             case ',': addToken(TokenType.COMMA); break;
             case '.': addToken(TokenType.DOT); break;
             //case '-': addToken(TokenType.MINUS); break;
@@ -216,16 +221,27 @@ public class Scanner {
         addToken(type);
     }
 
-    private boolean isDigit(char c) {
+    /**
+     * True if the text scans as a single identifier, e.g. the name of a module
+     */
+    static boolean isIdentifier(String text) {
+        if(text.isEmpty() || !isAlpha(text.charAt(0)) || keywords.containsKey(text)) return false;
+        for (int i = 1; i < text.length(); i++) {
+            if(!isAlphaNumeric(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
         return c >= '0' && c <= '9';
     }
 
-    private boolean isAlpha(char c) {
+    private static boolean isAlpha(char c) {
         return (c >= 'a' && c <= 'z') ||
                 (c >= 'A' && c <= 'Z') ||
                 c == '_';
     }
-    private boolean isAlphaNumeric(char c) {
+    private static boolean isAlphaNumeric(char c) {
         return isAlpha(c) || isDigit(c);
     }
 }
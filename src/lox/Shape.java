@@ -0,0 +1,61 @@
+package lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The hidden class of an instance: which field lives in which slot.
+ * Instances of a class that get the same fields in the same order share one Shape,
+ * so a property access site can remember the slot per Shape (see PropertyCache)
+ * instead of hashing the name for every access.
+ * Adding a field moves an instance to the next Shape along a cached transition.
+ */
+class Shape {
+    final LoxClass klass;
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    private Shape(LoxClass klass, Map<String, Integer> slots) {
+        this.klass = klass;
+        this.slots = slots;
+    }
+
+    /**
+     * The Shape every instance of a class starts with, holding its declared fields
+     */
+    static Shape root(LoxClass klass, List<String> fields) {
+        Map<String, Integer> slots = new HashMap<>();
+        for (String field : fields) {
+            slots.putIfAbsent(field, slots.size());
+        }
+        return new Shape(klass, slots);
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    /**
+     * Returns the slot of the field, or -1 if instances of this Shape don't have it
+     */
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * The Shape after adding a field, which gets the next free slot.
+     * Parallel tasks may add the same field at the same time, they get the same Shape.
+     */
+    synchronized Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, slots.size());
+            next = new Shape(klass, nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,740 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs scripts on an explicit stack on the heap instead of the Java stack,
+ * selected with -Dlox.stack=heap.
+ * The Interpreter evaluates a node by recursing into its children, so deep Lox
+ * recursion overflows the Java stack after a few hundred calls. Here a node
+ * schedules its children on the work stack and a continuation of itself below
+ * them, and the loop in run() takes one entry at a time. Values go on a second stack.
+ * Lox calls push a Frame instead of calling into LoxFunction, their depth is
+ * only limited by maxDepth (-Dlox.stack.maxDepth) and the heap.
+ * The body of a generator runs on a StackMachine of its own, a yield stops
+ * its loop and leaves the rest of the body on its stacks until it's resumed.
+ *
+ * Leaves and the declarations, which don't nest, are still handed to the
+ * Interpreter, which also holds the state both share: the Environment,
+ * the loop invariants and the arguments of inlined calls.
+ */
+class StackMachine implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private final Interpreter interpreter;
+    private final int maxDepth;
+
+    // the work stack: a node, or a Frame, and the step to continue it at
+    private Object[] nodes = new Object[256];
+    private int[] steps = new int[256];
+    private int top = 0;
+
+    private Object[] values = new Object[256];
+    private int sp = 0;
+
+    private int depth = 0;
+    // the step of the entry being run
+    private int step;
+
+    // set by a yield in the body of a generator, which stops run(), see LoxGenerator
+    private boolean suspended = false;
+    private Object yielded;
+
+    /**
+     * A running Lox call, with the state of the caller to go back to
+     */
+    private static class Frame {
+        final LoxFunction function;
+        final Environment environment;
+        final Environment callerEnvironment;
+        final Object[] callerInvariants;
+        final Object[] callerArguments;
+        final int valueBase;
+        // for a generator, the time it spent suspended counts as well
+        final CallEvent event = new CallEvent();
+
+        Frame(LoxFunction function, Environment environment, Interpreter interpreter, int valueBase) {
+            event.begin();
+            this.function = function;
+            this.environment = environment;
+            this.callerEnvironment = interpreter.environment;
+            this.callerInvariants = interpreter.invariants;
+            this.callerArguments = interpreter.arguments;
+            this.valueBase = valueBase;
+        }
+    }
+
+    static int maxDepth() {
+        return Integer.getInteger("lox.stack.maxDepth", 1_000_000);
+    }
+
+    StackMachine(Interpreter interpreter, int maxDepth) {
+        this.interpreter = interpreter;
+        this.maxDepth = maxDepth;
+    }
+
+    void execute(List<Stmt> statements) {
+        Environment environment = interpreter.environment;
+        try {
+            for (Stmt statement : statements) {
+                pushStatement(statement);
+                run();
+            }
+        } finally {
+            // after a runtime error the REPL goes on with the next line
+            Arrays.fill(nodes, 0, top, null);
+            Arrays.fill(values, 0, sp, null);
+            top = 0;
+            sp = 0;
+            depth = 0;
+            interpreter.environment = environment;
+            interpreter.invariants = null;
+            interpreter.arguments = null;
+        }
+    }
+
+    /**
+     * Pushes the body of a generator, it runs on the next resume()
+     */
+    void start(LoxFunction function, LoxInstance instance, List<Object> arguments) {
+        pushFrame(function, instance, arguments);
+    }
+
+    /**
+     * Runs the started generator up to its next yield.
+     * Returns false if the body ran to its end instead.
+     */
+    boolean resume() {
+        suspended = false;
+        run();
+        return suspended;
+    }
+
+    /**
+     * The value of the yield that suspended the body
+     */
+    Object yielded() {
+        Object value = yielded;
+        yielded = null;
+        return value;
+    }
+
+    private void run() {
+        while (top > 0 && !suspended) {
+            top--;
+            Object node = nodes[top];
+            nodes[top] = null;
+            step = steps[top];
+
+            if (node instanceof Expr) {
+                ((Expr)node).accept(this);
+            } else if (node instanceof Stmt) {
+                ((Stmt)node).accept(this);
+            } else {
+                continueFrame((Frame)node);
+            }
+        }
+    }
+
+    private void push(Object node, int step) {
+        if (top == nodes.length) {
+            nodes = Arrays.copyOf(nodes, top * 2);
+            steps = Arrays.copyOf(steps, top * 2);
+        }
+        nodes[top] = node;
+        steps[top] = step;
+        top++;
+    }
+
+    private void pushStatement(Stmt statement) {
+        interpreter.metrics.statementsExecuted++;
+        push(statement, 0);
+    }
+
+    /**
+     * Schedules the expressions so they are evaluated from first to last
+     */
+    private void pushAll(List<Expr> expressions) {
+        for (int i = expressions.size() - 1; i >= 0; i--) {
+            push(expressions.get(i), 0);
+        }
+    }
+
+    private void pushValue(Object value) {
+        if (sp == values.length) values = Arrays.copyOf(values, sp * 2);
+        values[sp++] = value;
+    }
+
+    private Object popValue() {
+        Object value = values[--sp];
+        values[sp] = null;
+        return value;
+    }
+
+    private List<Object> popValues(int count) {
+        List<Object> list = new ArrayList<>(count);
+        for (int i = sp - count; i < sp; i++) {
+            list.add(values[i]);
+            values[i] = null;
+        }
+        sp -= count;
+        return list;
+    }
+
+    /**
+     * Runs the statements of a block or body one after the other.
+     * The continuation is pushed with the index of the next statement plus one.
+     * Returns false when all of them ran.
+     */
+    private boolean next(Object node, List<Stmt> statements, int next) {
+        if (next >= statements.size()) return false;
+        push(node, next + 1);
+        pushStatement(statements.get(next));
+        return true;
+    }
+
+    /**
+     * The result of a Binary, Unary or Call, kept if it's a loop invariant
+     */
+    private void result(int invariant, Object value) {
+        if (invariant >= 0) interpreter.invariants[invariant] = value;
+        pushValue(value);
+    }
+
+    /**
+     * True if the invariant was already evaluated in this run of the loop
+     */
+    private boolean reuse(int invariant) {
+        if (invariant < 0) return false;
+        Object value = interpreter.invariants[invariant];
+        if (value == Interpreter.NOT_EVALUATED) return false;
+        interpreter.metrics.invariantsReused++;
+        pushValue(value);
+        return true;
+    }
+
+    private void call(Object callee, Token paren, List<Object> arguments) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            interpreter.checkArity(paren, function, arguments.size());
+            enter(function, null, paren, arguments);
+        } else if (callee instanceof LoxClass && ((LoxClass)callee).initializer != null) {
+            LoxClass klass = (LoxClass)callee;
+            interpreter.checkArity(paren, klass, arguments.size());
+            enter(klass.initializer, new LoxInstance(klass), paren, arguments);
+        } else {
+            // natives and classes without init() don't run Lox code
+            pushValue(interpreter.callValue(callee, paren, arguments));
+        }
+    }
+
+    private void enter(LoxFunction function, LoxInstance instance, Token paren, List<Object> arguments) {
+        // the body of a generator only runs when the generator is resumed
+        if (function.isGenerator()) {
+            interpreter.metrics.calls++;
+            pushValue(function.generator(interpreter, instance, arguments));
+            return;
+        }
+        if (depth == maxDepth) throw new RuntimeError(paren, "Stack overflow.");
+        pushFrame(function, instance, arguments);
+    }
+
+    private void pushFrame(LoxFunction function, LoxInstance instance, List<Object> arguments) {
+        depth++;
+        interpreter.metrics.calls++;
+
+        Environment environment = function.enter(interpreter, instance, arguments);
+        push(new Frame(function, environment, interpreter, sp), 0);
+        interpreter.environment = environment;
+    }
+
+    private void continueFrame(Frame frame) {
+        if (next(frame, frame.function.body(), step)) return;
+        leave(frame, null);
+    }
+
+    /**
+     * Goes back to the caller with the return value on the value stack
+     */
+    private void leave(Frame frame, Object value) {
+        // init() always returns the instance, even on an early return
+        if (frame.function.isInitializer()) value = frame.function.instance(frame.environment);
+
+        while (sp > frame.valueBase) popValue();
+        interpreter.environment = frame.callerEnvironment;
+        interpreter.invariants = frame.callerInvariants;
+        interpreter.arguments = frame.callerArguments;
+        depth--;
+        frame.function.endEvent(frame.event);
+        pushValue(value);
+    }
+
+    @Override
+    public Void visitArgumentExpr(Expr.Argument expr) {
+        pushValue(interpreter.visitArgumentExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (step == 0) {
+            push(expr, 1);
+            push(expr.value, 0);
+        } else {
+            pushValue(interpreter.assign(expr, popValue()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (step == 0) {
+            if (reuse(expr.invariant)) return null;
+            push(expr, 1);
+            push(expr.right, 0);
+            push(expr.left, 0);
+        } else {
+            Object right = popValue();
+            Object left = popValue();
+            result(expr.invariant, interpreter.binary(expr, left, right));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        switch (step) {
+            case 0:
+                if (reuse(expr.invariant)) return null;
+                push(expr, 1);
+                push(expr.callee, 0);
+                break;
+            case 1:
+                push(expr, 2);
+                pushAll(expr.arguments);
+                break;
+            case 2: {
+                List<Object> arguments = popValues(expr.arguments.size());
+                Object callee = popValue();
+                if (expr.inlined != null && callee instanceof LoxFunction
+                        && ((LoxFunction)callee).isDeclaredBy(expr.target)) {
+                    interpreter.metrics.calls++;
+                    pushValue(interpreter.arguments);
+                    interpreter.arguments = arguments.toArray();
+                    push(expr, 3);
+                    push(expr.inlined, 0);
+                } else if (expr.invariant >= 0) {
+                    // a hoisted call is a pure native, it doesn't run Lox code
+                    result(expr.invariant, interpreter.callValue(callee, expr.paren, arguments));
+                } else {
+                    call(callee, expr.paren, arguments);
+                }
+                break;
+            }
+            default: {
+                Object value = popValue();
+                interpreter.arguments = (Object[])popValue();
+                result(expr.invariant, value);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        if (step == 0) {
+            push(expr, 1);
+            push(expr.object, 0);
+        } else {
+            pushValue(interpreter.get(expr, popValue()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCompareConstantExpr(Expr.CompareConstant expr) {
+        pushValue(interpreter.visitCompareConstantExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        push(expr.expression, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitIncrementExpr(Expr.Increment expr) {
+        // the fallback is 'i + constant', it can't nest
+        pushValue(interpreter.visitIncrementExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr) {
+        switch (step) {
+            case 0:
+                push(expr, 1);
+                push(expr.object, 0);
+                break;
+            case 1: {
+                Object object = popValue();
+                if (object instanceof LoxModule) {
+                    // module.function(), called like a field holding a function
+                    pushValue(((LoxModule)object).get(interpreter, expr.name));
+                    push(expr, 3);
+                    pushAll(expr.arguments);
+                    break;
+                }
+                LoxInstance instance = interpreter.instance(expr.name, object,
+                        "Only instances have properties.");
+                LoxFunction method = interpreter.invokedMethod(expr, instance);
+                if (method != null) {
+                    pushValue(instance);
+                    pushValue(method);
+                    push(expr, 2);
+                } else {
+                    pushValue(instance.field(instance.shape.slotOf(expr.name.lexeme)));
+                    push(expr, 3);
+                }
+                pushAll(expr.arguments);
+                break;
+            }
+            case 2: {
+                List<Object> arguments = popValues(expr.arguments.size());
+                LoxFunction method = (LoxFunction)popValue();
+                LoxInstance instance = (LoxInstance)popValue();
+                interpreter.checkArity(expr.paren, method, arguments.size());
+                enter(method, instance, expr.paren, arguments);
+                break;
+            }
+            default: {
+                List<Object> arguments = popValues(expr.arguments.size());
+                call(popValue(), expr.paren, arguments);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        pushValue(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        pushValue(interpreter.visitVariableExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        if (step == 0) {
+            push(expr, 1);
+            push(expr.left, 0);
+            return null;
+        }
+
+        // the left value stays the result if it decides
+        boolean truthy = interpreter.isTruthy(values[sp - 1]);
+        if (expr.operator.type == TokenType.OR ? truthy : !truthy) return null;
+        popValue();
+        push(expr.right, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        switch (step) {
+            case 0:
+                push(expr, 1);
+                push(expr.object, 0);
+                break;
+            case 1:
+                // checked before the value is evaluated
+                interpreter.instance(expr.name, values[sp - 1], "Only instances have fields.");
+                push(expr, 2);
+                push(expr.value, 0);
+                break;
+            default: {
+                Object value = popValue();
+                LoxInstance instance = (LoxInstance)popValue();
+                pushValue(interpreter.set(expr, instance, value));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        pushValue(interpreter.visitSuperExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        pushValue(interpreter.visitThisExpr(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (step == 0) {
+            if (reuse(expr.invariant)) return null;
+            push(expr, 1);
+            push(expr.right, 0);
+        } else {
+            result(expr.invariant, interpreter.unary(expr, popValue()));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitArrayExpr(Expr.Array expr) {
+        if (step == 0) {
+            push(expr, 1);
+            pushAll(expr.elements);
+            return null;
+        }
+
+        List<Object> elements = popValues(expr.elements.size());
+        LoxArray array = new LoxArray(elements.size());
+        for (Object element : elements) {
+            array.append(element);
+        }
+        pushValue(array);
+        return null;
+    }
+
+    @Override
+    public Void visitMapExpr(Expr.Map expr) {
+        // step i + 1: the i-th key and value are on the stack
+        if (step > 0) {
+            Object value = popValue();
+            Object key = popValue();
+            interpreter.put(expr, (LoxMap)values[sp - 1], key, value);
+        } else {
+            pushValue(new LoxMap());
+        }
+
+        if (step < expr.keys.size()) {
+            push(expr, step + 1);
+            push(expr.values.get(step), 0);
+            push(expr.keys.get(step), 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr) {
+        if (step == 0) {
+            push(expr, 1);
+            push(expr.index, 0);
+            push(expr.object, 0);
+        } else {
+            Object index = popValue();
+            pushValue(interpreter.index(expr, popValue(), index));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIndexSetExpr(Expr.IndexSet expr) {
+        if (step == 0) {
+            push(expr, 1);
+            push(expr.value, 0);
+            push(expr.index, 0);
+            push(expr.object, 0);
+        } else {
+            Object value = popValue();
+            Object index = popValue();
+            pushValue(interpreter.indexSet(expr, popValue(), index, value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        Environment environment = interpreter.environment;
+        if (step == 0) {
+            // the block's Environment, and for an elided block the shadowed values,
+            // are kept on the value stack until it ends
+            if (stmt.elided) {
+                interpreter.metrics.environmentsElided++;
+                pushValue(environment);
+                pushValue(stmt.shadowed.isEmpty() ? null : environment.save(stmt.shadowed));
+            } else {
+                interpreter.metrics.environmentsAllocated++;
+                pushValue(environment);
+                interpreter.environment = new Environment(environment);
+                interpreter.environment.defineForward(stmt.forward);
+            }
+        }
+        if (next(stmt, stmt.statements, step)) return null;
+
+        // A return skips this, the Environment of the function is dropped anyway
+        if (stmt.elided) {
+            Object[] saved = (Object[])popValue();
+            ((Environment)popValue()).restore(stmt.locals, stmt.shadowed, saved);
+        } else {
+            interpreter.environment = (Environment)popValue();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        stmt.accept(interpreter);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (step == 0) {
+            push(stmt, 1);
+            push(stmt.expression, 0);
+        } else {
+            popValue();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        switch (step) {
+            case 0:
+                pushValue(interpreter.enterLoop(stmt.invariants));
+                push(stmt, 1);
+                push(stmt.condition, 0);
+                break;
+            case 1:
+                if (interpreter.isTruthy(popValue())) {
+                    push(stmt, 2);
+                    pushStatement(stmt.body);
+                } else {
+                    interpreter.invariants = (Object[])popValue();
+                }
+                break;
+            case 2:
+                if (stmt.increment != null) {
+                    push(stmt, 3);
+                    push(stmt.increment, 0);
+                    break;
+                }
+                push(stmt, 1);
+                push(stmt.condition, 0);
+                break;
+            default:
+                popValue();
+                push(stmt, 1);
+                push(stmt.condition, 0);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        stmt.accept(interpreter);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        if (step == 0) {
+            push(stmt, 1);
+            push(stmt.condition, 0);
+        } else if (interpreter.isTruthy(popValue())) {
+            pushStatement(stmt.thenBranch);
+        } else if (stmt.elseBranch != null) {
+            pushStatement(stmt.elseBranch);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (step == 0 && stmt.initializer != null) {
+            push(stmt, 1);
+            push(stmt.initializer, 0);
+            return null;
+        }
+
+        Object value = stmt.initializer != null ? popValue() : null;
+        if (stmt.boxed) {
+            interpreter.environment.defineBoxed(stmt.name.lexeme, value);
+        } else {
+            interpreter.environment.define(stmt.name.lexeme, value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (step == 0 && stmt.value != null) {
+            push(stmt, 1);
+            push(stmt.value, 0);
+            return null;
+        }
+
+        Object value = stmt.value != null ? popValue() : null;
+        // drop what's left of the function's blocks and loops
+        while (!(nodes[top - 1] instanceof Frame)) {
+            nodes[--top] = null;
+        }
+        Frame frame = (Frame)nodes[--top];
+        nodes[top] = null;
+        leave(frame, value);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        if (step == 0) {
+            push(stmt, 1);
+            push(stmt.value, 0);
+        } else {
+            yielded = popValue();
+            suspended = true;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        stmt.accept(interpreter);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        if (step == 0) {
+            push(stmt, 1);
+            push(stmt.expression, 0);
+        } else {
+            interpreter.print(popValue());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        switch (step) {
+            case 0:
+                pushValue(interpreter.enterLoop(stmt.invariants));
+                push(stmt, 1);
+                push(stmt.condition, 0);
+                break;
+            case 1:
+                if (interpreter.isTruthy(popValue())) {
+                    push(stmt, 1);
+                    push(stmt.condition, 0);
+                    pushStatement(stmt.body);
+                } else {
+                    interpreter.invariants = (Object[])popValue();
+                }
+                break;
+        }
+        return null;
+    }
+}
@@ -2,19 +2,44 @@ package lox;
 
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt {
 	interface Visitor<R> {
 		R visitBlockStmt(Block stmt);
+		R visitClassStmt(Class stmt);
 		R visitExpressionStmt(Expression stmt);
+		R visitForStmt(For stmt);
 		R visitFunctionStmt(Function stmt);
 		R visitIfStmt(If stmt);
 		R visitVarStmt(Var stmt);
 		R visitReturnStmt(Return stmt);
 		R visitPrintStmt(Print stmt);
 		R visitWhileStmt(While stmt);
+		R visitYieldStmt(Yield stmt);
+		R visitImportStmt(Import stmt);
 	}
-	static class Block extends Stmt {
+
+	static final int BLOCK = 0;
+	static final int CLASS = 1;
+	static final int EXPRESSION = 2;
+	static final int FOR = 3;
+	static final int FUNCTION = 4;
+	static final int IF = 5;
+	static final int VAR = 6;
+	static final int RETURN = 7;
+	static final int PRINT = 8;
+	static final int WHILE = 9;
+	static final int YIELD = 10;
+	static final int IMPORT = 11;
+
+	final int kind;
+
+	private Stmt(int kind) {
+		this.kind = kind;
+	}
+
+	static final class Block extends Stmt {
 		Block(List<Stmt> statements) {
+			super(BLOCK);
 			this.statements = statements;
 		}
 
@@ -24,9 +49,34 @@ abstract class Stmt {
 		}
 
 		final List<Stmt> statements;
+		boolean elided;
+		List<String> locals;
+		List<String> shadowed;
+		List<String> forward = List.of();
+	}
+	static final class Class extends Stmt {
+		Class(Token name, Expr.Variable superclass, List<Token> fields, List<Stmt.Function> methods) {
+			super(CLASS);
+			this.name = name;
+			this.superclass = superclass;
+			this.fields = fields;
+			this.methods = methods;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitClassStmt(this);
+		}
+
+		final Token name;
+		final Expr.Variable superclass;
+		final List<Token> fields;
+		final List<Stmt.Function> methods;
+		boolean boxed;
 	}
-	static class Expression extends Stmt {
+	static final class Expression extends Stmt {
 		Expression(Expr expression) {
+			super(EXPRESSION);
 			this.expression = expression;
 		}
 
@@ -37,8 +87,27 @@ abstract class Stmt {
 
 		final Expr expression;
 	}
-	static class Function extends Stmt {
+	static final class For extends Stmt {
+		For(Expr condition, Stmt body, Expr increment) {
+			super(FOR);
+			this.condition = condition;
+			this.body = body;
+			this.increment = increment;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitForStmt(this);
+		}
+
+		final Expr condition;
+		final Stmt body;
+		final Expr increment;
+		int invariants;
+	}
+	static final class Function extends Stmt {
 		Function(Token name, List<Token> params, List<Stmt> body) {
+			super(FUNCTION);
 			this.name = name;
 			this.params = params;
 			this.body = body;
@@ -52,9 +121,18 @@ abstract class Stmt {
 		final Token name;
 		final List<Token> params;
 		final List<Stmt> body;
+		List<String> upvalues;
+		boolean boxed;
+		boolean[] boxedParams;
+		LazyBody lazy;
+		boolean assignsOuter;
+		boolean assignsGlobal;
+		boolean generator;
+		List<String> forward = List.of();
 	}
-	static class If extends Stmt {
+	static final class If extends Stmt {
 		If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+			super(IF);
 			this.condition = condition;
 			this.thenBranch = thenBranch;
 			this.elseBranch = elseBranch;
@@ -69,8 +147,9 @@ abstract class Stmt {
 		final Stmt thenBranch;
 		final Stmt elseBranch;
 	}
-	static class Var extends Stmt {
+	static final class Var extends Stmt {
 		Var(Token name, Expr initializer) {
+			super(VAR);
 			this.name = name;
 			this.initializer = initializer;
 		}
@@ -82,9 +161,11 @@ abstract class Stmt {
 
 		final Token name;
 		final Expr initializer;
+		boolean boxed;
 	}
-	static class Return extends Stmt {
+	static final class Return extends Stmt {
 		Return(Token keyword, Expr value) {
+			super(RETURN);
 			this.keyword = keyword;
 			this.value = value;
 		}
@@ -97,8 +178,9 @@ abstract class Stmt {
 		final Token keyword;
 		final Expr value;
 	}
-	static class Print extends Stmt {
+	static final class Print extends Stmt {
 		Print(Expr expression) {
+			super(PRINT);
 			this.expression = expression;
 		}
 
@@ -109,8 +191,9 @@ abstract class Stmt {
 
 		final Expr expression;
 	}
-	static class While extends Stmt {
+	static final class While extends Stmt {
 		While(Expr condition, Stmt body) {
+			super(WHILE);
 			this.condition = condition;
 			this.body = body;
 		}
@@ -122,6 +205,39 @@ abstract class Stmt {
 
 		final Expr condition;
 		final Stmt body;
+		int invariants;
+	}
+	static final class Yield extends Stmt {
+		Yield(Token keyword, Expr value) {
+			super(YIELD);
+			this.keyword = keyword;
+			this.value = value;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitYieldStmt(this);
+		}
+
+		final Token keyword;
+		final Expr value;
+	}
+	static final class Import extends Stmt {
+		Import(Token keyword, Token path, Token name) {
+			super(IMPORT);
+			this.keyword = keyword;
+			this.path = path;
+			this.name = name;
+		}
+
+		@Override
+		<R> R accept(Visitor<R> visitor) {
+			return visitor.visitImportStmt(this);
+		}
+
+		final Token keyword;
+		final Token path;
+		final Token name;
 	}
 
 	abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,56 @@
+package lox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Writes to a stream through a large buffer.
+ * Unlike System.out it doesn't lock and flush for every line,
+ * unless flushLines is set.
+ */
+class StreamOutput implements OutputSink {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Writer writer;
+    private final boolean flushLines;
+    private char[] chars = new char[256];
+
+    StreamOutput(OutputStream stream, boolean flushLines) {
+        this.writer = new BufferedWriter(
+                new OutputStreamWriter(stream, Charset.defaultCharset()), BUFFER_SIZE);
+        this.flushLines = flushLines;
+    }
+
+    @Override
+    public void println(CharSequence text) {
+        try {
+            if (text instanceof StringBuilder) {
+                // Writer.append() would make a String of it first
+                StringBuilder builder = (StringBuilder)text;
+                if (chars.length < builder.length()) chars = new char[builder.length()];
+                builder.getChars(0, builder.length(), chars, 0);
+                writer.write(chars, 0, builder.length());
+            } else {
+                writer.write(text.toString());
+            }
+            writer.write(System.lineSeparator());
+            if (flushLines) writer.flush();
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            writer.flush();
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+}
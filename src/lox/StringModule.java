@@ -0,0 +1,40 @@
+package lox;
+
+import static lox.LoxNative.integer;
+import static lox.LoxNative.string;
+
+class StringModule implements NativeModule {
+    @Override
+    public void register(Interpreter interpreter) {
+        interpreter.defineNative("str", a -> interpreter.stringify(a));
+        interpreter.definePureNative("upper", a -> string(a, "upper").toUpperCase());
+        interpreter.definePureNative("lower", a -> string(a, "lower").toLowerCase());
+        interpreter.definePureNative("indexOf", (a, b) ->
+                (double)string(a, "indexOf").indexOf(string(b, "indexOf")));
+        interpreter.definePureNative("charAt", (a, b) -> {
+            String string = string(a, "charAt");
+            int index = integer(b, "charAt");
+            if (index < 0 || index >= string.length()) {
+                throw new NativeError("String index out of range.");
+            }
+            return String.valueOf(string.charAt(index));
+        });
+        interpreter.definePureNative("substring", (a, b, c) -> {
+            String string = string(a, "substring");
+            int start = integer(b, "substring");
+            int end = integer(c, "substring");
+            if (start < 0 || end > string.length() || start > end) {
+                throw new NativeError("Substring range out of bounds.");
+            }
+            return string.substring(start, end);
+        });
+        // nil if the string isn't a number, so scripts can check the result
+        interpreter.definePureNative("toNumber", a -> {
+            try {
+                return Double.parseDouble(string(a, "toNumber").trim());
+            } catch (NumberFormatException error) {
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,39 @@
+package lox;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The output of a script once it started parallel tasks, shared by the script and its tasks.
+ * Whole lines are printed one at a time, the lines of different tasks come out
+ * in whatever order the tasks get there.
+ * A ReentrantLock instead of synchronized, a spawned task's virtual thread that
+ * waits for the lock or the stream then doesn't pin its carrier thread.
+ */
+class SynchronizedOutput implements OutputSink {
+    private final OutputSink sink;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    SynchronizedOutput(OutputSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void println(CharSequence text) {
+        lock.lock();
+        try {
+            sink.println(text);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            sink.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
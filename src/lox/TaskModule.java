@@ -0,0 +1,121 @@
+package lox;
+
+import java.util.List;
+import java.util.concurrent.FutureTask;
+
+import static lox.LoxNative.integer;
+import static lox.LoxNative.number;
+
+/**
+ * spawn(function) runs a function without parameters on its own virtual thread and
+ * returns a task, await(task) waits for its result. Tasks talk through bounded
+ * channels: channel(capacity), send(channel, value), receive(channel) and close(channel).
+ * Tasks are cheap, a script can fan out over thousands of slow calls, like sleep(seconds).
+ *
+ * Like the tasks of parallelMap(), a spawned task runs on its own Interpreter that
+ * shares the globals, and can't call functions that assign variables declared
+ * outside of them, see LoxFunction. Values go to and from a task through
+ * the variables its function reads, its result and channels.
+ * A task that is still running when the script ends is abandoned.
+ * Its counters are added to the Metrics of the code that awaits it, a task
+ * that is never awaited isn't counted.
+ */
+class TaskModule implements NativeModule {
+    @Override
+    public void register(Interpreter interpreter) {
+        interpreter.defineNative("spawn", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return spawn(interpreter, arguments.get(0));
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+        interpreter.defineNative("await", new LoxCallable() {
+            @Override
+            public int arity() {
+                return 1;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return task(arguments.get(0), "await").join(interpreter);
+            }
+
+            @Override
+            public String toString() {
+                return "<native fn>";
+            }
+        });
+
+        interpreter.defineNative("channel", a -> {
+            int capacity = integer(a, "channel");
+            if (capacity < 1) throw new NativeError("Channel capacity must be at least 1.");
+            return new LoxChannel(capacity);
+        });
+        interpreter.defineNative("send", (a, b) -> {
+            channel(a, "send").send(b);
+            return null;
+        });
+        interpreter.defineNative("receive", a -> channel(a, "receive").receive());
+        interpreter.defineNative("close", a -> {
+            channel(a, "close").close();
+            return null;
+        });
+
+        // stands in for slow calls, a sleeping task doesn't hold a thread
+        interpreter.defineNative("sleep", a -> {
+            double seconds = number(a, "sleep");
+            try {
+                Thread.sleep((long)(seconds * 1000));
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new NativeError("Interrupted while sleeping.");
+            }
+            return null;
+        });
+    }
+
+    private static LoxTask spawn(Interpreter interpreter, Object function) {
+        if (!(function instanceof LoxFunction) && !(function instanceof LoxNative)) {
+            throw new NativeError("Argument to 'spawn' must be a function.");
+        }
+        LoxCallable callable = (LoxCallable)function;
+        if (callable.arity() != 0) {
+            throw new NativeError("The function passed to 'spawn' can't take arguments.");
+        }
+        if (callable instanceof LoxFunction && ((LoxFunction)callable).assignsOuter()) {
+            throw new NativeError(
+                    "The function passed to 'spawn' can't assign variables declared outside of it.");
+        }
+
+        interpreter.synchronizeOutput();
+        Interpreter task = new Interpreter(interpreter);
+        Lox lox = Lox.current();
+        FutureTask<Object> result = new FutureTask<>(() -> {
+            Object[] value = new Object[1];
+            Lox.runAs(lox, () -> value[0] = callable.call(task, List.of()));
+            return value[0];
+        });
+        Thread.ofVirtual().name("lox-task").start(result);
+        return new LoxTask(result, task.metrics);
+    }
+
+    private static LoxTask task(Object argument, String function) {
+        if (argument instanceof LoxTask) return (LoxTask)argument;
+        throw new NativeError("Argument to '" + function + "' must be a task.");
+    }
+
+    private static LoxChannel channel(Object argument, String function) {
+        if (argument instanceof LoxChannel) return (LoxChannel)argument;
+        throw new NativeError("Argument to '" + function + "' must be a channel.");
+    }
+}
@@ -3,6 +3,7 @@ package lox;
 enum TokenType {
     // Single Character Tokens
     LEFT_PARENTHESES, RIGHT_PARENTHESES, LEFT_BRACE, RIGHT_BRACE,
+    LEFT_BRACKET, RIGHT_BRACKET, COLON,
     COMMA, DOT, MINUS, PLUS, SEMICOLON, STAR,
 
     // One or Two Character Tokens
@@ -14,7 +15,7 @@ enum TokenType {
 
     //Keywords
     AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR, PRINT, RETURN,
-    SUPER, THIS, TRUE, VAR, WHILE,
+    SUPER, THIS, TRUE, VAR, WHILE, YIELD, IMPORT,
 
     EOF
 }
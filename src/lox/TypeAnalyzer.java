@@ -0,0 +1,386 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static pass after the Resolver that proves where operands are numbers,
+ * so the Interpreter can skip the type checks of arithmetic and comparisons.
+ * It follows the statements of each function in order and tracks which of its
+ * own locals hold a number at each point. Branches are joined, loops are
+ * analyzed again until what they assign is stable. Only the function itself can
+ * assign a local the Resolver didn't box, globals and boxed locals are never trusted.
+ * A Binary or Unary whose operands are proven numbers is marked numeric.
+ */
+class TypeAnalyzer implements Expr.Visitor<Boolean>, Stmt.Visitor<Void> {
+    private enum Type { NUMBER, OTHER, BOXED }
+
+    // the block scopes of the current function, the innermost last
+    private List<Map<String, Type>> scopes = new ArrayList<>();
+
+    void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            analyze(statement);
+        }
+    }
+
+    private void analyze(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    /**
+     * Returns true if the expression is a number whenever it evaluates without an error
+     */
+    private boolean analyze(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void declare(Token name, boolean boxed, boolean number) {
+        if (scopes.isEmpty()) return;
+        scopes.get(scopes.size() - 1).put(name.lexeme, boxed ? Type.BOXED : number ? Type.NUMBER : Type.OTHER);
+    }
+
+    private void assign(Token name, boolean number) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Map<String, Type> scope = scopes.get(i);
+            Type type = scope.get(name.lexeme);
+            if (type == null) continue;
+            if (type != Type.BOXED) scope.put(name.lexeme, number ? Type.NUMBER : Type.OTHER);
+            return;
+        }
+    }
+
+    private boolean isNumber(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Type type = scopes.get(i).get(name.lexeme);
+            if (type != null) return type == Type.NUMBER;
+        }
+        // a global or a variable of an enclosing function
+        return false;
+    }
+
+    private List<Map<String, Type>> copy() {
+        List<Map<String, Type>> copy = new ArrayList<>(scopes.size());
+        for (Map<String, Type> scope : scopes) {
+            copy.add(new HashMap<>(scope));
+        }
+        return copy;
+    }
+
+    /**
+     * Both paths end in the same scopes, a local stays a number if it is one on both
+     */
+    private static List<Map<String, Type>> join(List<Map<String, Type>> a, List<Map<String, Type>> b) {
+        List<Map<String, Type>> joined = new ArrayList<>(a.size());
+        for (int i = 0; i < a.size(); i++) {
+            Map<String, Type> scope = new HashMap<>(a.get(i));
+            for (Map.Entry<String, Type> entry : b.get(i).entrySet()) {
+                if (scope.get(entry.getKey()) != entry.getValue()) scope.put(entry.getKey(), Type.OTHER);
+            }
+            joined.add(scope);
+        }
+        return joined;
+    }
+
+    private void analyzeFunction(Stmt.Function function) {
+        List<Map<String, Type>> enclosing = scopes;
+        scopes = new ArrayList<>();
+        scopes.add(new HashMap<>());
+        for (int i = 0; i < function.params.size(); i++) {
+            declare(function.params.get(i), function.boxedParams[i], false);
+        }
+        analyze(function.body);
+        scopes = enclosing;
+    }
+
+    /**
+     * Runs the analysis of the loop until the locals at its start don't change anymore.
+     * The last round starts with the final state, so its marks are the ones that hold.
+     */
+    private void analyzeLoop(Expr condition, Stmt body, Expr increment) {
+        List<Map<String, Type>> entry = copy();
+        while (true) {
+            scopes = copy(entry);
+            analyze(condition);
+            List<Map<String, Type>> exit = copy();
+            analyze(body);
+            if (increment != null) analyze(increment);
+
+            List<Map<String, Type>> next = join(entry, scopes);
+            if (next.equals(entry)) {
+                scopes = exit;
+                return;
+            }
+            entry = next;
+        }
+    }
+
+    private static List<Map<String, Type>> copy(List<Map<String, Type>> scopes) {
+        List<Map<String, Type>> copy = new ArrayList<>(scopes.size());
+        for (Map<String, Type> scope : scopes) {
+            copy.add(new HashMap<>(scope));
+        }
+        return copy;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashMap<>());
+        analyze(stmt.statements);
+        scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        if (stmt.superclass != null) analyze(stmt.superclass);
+        declare(stmt.name, stmt.boxed, false);
+        for (Stmt.Function method : stmt.methods) {
+            analyzeFunction(method);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        analyzeLoop(stmt.condition, stmt.body, stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name, stmt.boxed, false);
+        analyzeFunction(stmt);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        analyze(stmt.condition);
+        List<Map<String, Type>> before = copy();
+        analyze(stmt.thenBranch);
+        List<Map<String, Type>> afterThen = scopes;
+        scopes = before;
+        if (stmt.elseBranch != null) analyze(stmt.elseBranch);
+        scopes = join(afterThen, scopes);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        boolean number = stmt.initializer != null && analyze(stmt.initializer);
+        declare(stmt.name, stmt.boxed, number);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) analyze(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitYieldStmt(Stmt.Yield stmt) {
+        analyze(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        declare(stmt.name, false, false);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        analyze(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        analyzeLoop(stmt.condition, stmt.body, null);
+        return null;
+    }
+
+    @Override
+    public Boolean visitArgumentExpr(Expr.Argument expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        boolean number = analyze(expr.value);
+        if (!expr.global) assign(expr.name, number);
+        return number;
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        boolean left = analyze(expr.left);
+        boolean right = analyze(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS:
+            case SLASH:
+            case STAR:
+                expr.numeric = left && right;
+                checked(expr);
+                // anything else is an error
+                return true;
+            case PLUS:
+                expr.numeric = left && right;
+                // a number on the left is only added to a number
+                return left;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                expr.numeric = left && right;
+                checked(expr);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Past an operator that only takes numbers, the locals it read hold numbers.
+     * The left one may have been assigned while the right operand ran, unless that is simple.
+     */
+    private void checked(Expr.Binary expr) {
+        refine(expr.right);
+        if (expr.right instanceof Expr.Literal || expr.right instanceof Expr.Variable) refine(expr.left);
+    }
+
+    private void refine(Expr expr) {
+        if (expr instanceof Expr.Variable && !((Expr.Variable)expr).global) {
+            assign(((Expr.Variable)expr).name, true);
+        }
+    }
+
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        // the copy the Inliner attached only reads arguments and globals
+        analyze(expr.callee);
+        for (Expr argument : expr.arguments) {
+            analyze(argument);
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitGetExpr(Expr.Get expr) {
+        analyze(expr.object);
+        return false;
+    }
+
+    @Override
+    public Boolean visitCompareConstantExpr(Expr.CompareConstant expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return analyze(expr.expression);
+    }
+
+    @Override
+    public Boolean visitIncrementExpr(Expr.Increment expr) {
+        // a number stays a number, anything else takes the fallback
+        return !expr.global && isNumber(expr.name);
+    }
+
+    @Override
+    public Boolean visitInvokeExpr(Expr.Invoke expr) {
+        analyze(expr.object);
+        for (Expr argument : expr.arguments) {
+            analyze(argument);
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return expr.value instanceof Double;
+    }
+
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        return !expr.global && isNumber(expr.name);
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical expr) {
+        boolean left = analyze(expr.left);
+        // the right operand may not run
+        List<Map<String, Type>> skipped = copy();
+        boolean right = analyze(expr.right);
+        scopes = join(skipped, scopes);
+        return left && right;
+    }
+
+    @Override
+    public Boolean visitSetExpr(Expr.Set expr) {
+        analyze(expr.object);
+        return analyze(expr.value);
+    }
+
+    @Override
+    public Boolean visitSuperExpr(Expr.Super expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitThisExpr(Expr.This expr) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        boolean operand = analyze(expr.right);
+        if (expr.operator.type != TokenType.MINUS) return false;
+        expr.numeric = operand;
+        refine(expr.right);
+        return true;
+    }
+
+    @Override
+    public Boolean visitArrayExpr(Expr.Array expr) {
+        for (Expr element : expr.elements) {
+            analyze(element);
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitMapExpr(Expr.Map expr) {
+        for (int i = 0; i < expr.keys.size(); i++) {
+            analyze(expr.keys.get(i));
+            analyze(expr.values.get(i));
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitIndexExpr(Expr.Index expr) {
+        analyze(expr.object);
+        analyze(expr.index);
+        return false;
+    }
+
+    @Override
+    public Boolean visitIndexSetExpr(Expr.IndexSet expr) {
+        analyze(expr.object);
+        analyze(expr.index);
+        return analyze(expr.value);
+    }
+}
@@ -0,0 +1,17 @@
+package lox;
+
+/**
+ * A shared cell for a local variable that is captured by a closure
+ * and assigned after the capture.
+ * The declaring scope and every closure hold the same Upvalue,
+ * so an assignment on either side is visible to all of them.
+ * Globals live in cells as well, so the sites that use them can keep the cell.
+ * Spawned tasks read cells while the script assigns them, so the value is volatile.
+ */
+class Upvalue {
+    volatile Object value;
+
+    Upvalue(Object value) {
+        this.value = value;
+    }
+}
@@ -16,26 +16,51 @@ public class AstGenerator {
         String outputDir = args[0];
 
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign : Token name, Expr value",
-            "Binary : Expr left, Token operator, Expr right",
-            "Call : Expr callee, Token paren, List<Expr> arguments",
+            "Argument : Token name, int index",
+            "Assign : Token name, Expr value | boolean global, Upvalue cell",
+            "Binary : Expr left, Token operator, Expr right | int invariant = -1, FlatExpr flat, boolean numeric",
+            "Call : Expr callee, Token paren, List<Expr> arguments" +
+                    " | int invariant = -1, Stmt.Function target, Expr inlined",
+            "Get : Expr object, Token name | PropertyCache cache = new PropertyCache()",
+            "CompareConstant : Token name, Token operator, double constant | boolean global, Upvalue cell",
             "Grouping : Expr expression",
+            "Increment : Token name, Token operator, double delta, boolean prefix, Expr fallback" +
+                    " | boolean global, Upvalue cell",
+            "Invoke : Expr object, Token name, Token paren, List<Expr> arguments" +
+                    " | PropertyCache cache = new PropertyCache()",
             "Literal : Object value",
-            "Variable : Token name",
-            "Logical : Expr left, Token operator, Expr right",
-            "Unary : Token operator, Expr right"
+            "Variable : Token name | boolean global, Upvalue cell",
+            "Logical : Expr left, Token operator, Expr right | FlatExpr flat",
+            "Set : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache()",
+            "Super : Token keyword, Token method",
+            "This : Token keyword",
+            "Unary : Token operator, Expr right | int invariant = -1, FlatExpr flat, boolean numeric",
+            "Array : Token bracket, List<Expr> elements",
+            "Map : Token brace, List<Expr> keys, List<Expr> values",
+            "Index : Expr object, Token bracket, Expr index",
+            "IndexSet : Expr object, Token bracket, Expr index, Expr value"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block : List<Stmt> statements",
+                "Block : List<Stmt> statements" +
+                        " | boolean elided, List<String> locals, List<String> shadowed," +
+                        " List<String> forward = List.of()",
+                "Class : Token name, Expr.Variable superclass, List<Token> fields," +
+                        " List<Stmt.Function> methods | boolean boxed",
                 "Expression : Expr expression",
-                "Function : Token name, List<Token> params, List<Stmt> body",
+                "For : Expr condition, Stmt body, Expr increment | int invariants",
+                "Function : Token name, List<Token> params, List<Stmt> body" +
+                        " | List<String> upvalues, boolean boxed, boolean[] boxedParams, LazyBody lazy," +
+                        " boolean assignsOuter, boolean assignsGlobal, boolean generator," +
+                        " List<String> forward = List.of()",
                 "If : Expr condition, Stmt thenBranch," +
                         " Stmt elseBranch",
-                "Var : Token name, Expr initializer",
+                "Var : Token name, Expr initializer | boolean boxed",
                 "Return : Token keyword, Expr value",
                 "Print : Expr expression",
-                "While : Expr condition, Stmt body"
+                "While : Expr condition, Stmt body | int invariants",
+                "Yield : Token keyword, Expr value",
+                "Import : Token keyword, Token path, Token name"
         ));
     }
 
@@ -47,15 +72,20 @@ public class AstGenerator {
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        // Sealed with final nodes, so a switch over the node classes is exhaustive
+        writer.println("abstract sealed class " + baseName + " {");
 
         defineVisitor(writer, baseName, types);
+        defineKinds(writer, baseName, types);
 
         // Generate the AST Classes
         for(String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            // Everything after '|' is filled in after parsing, by the Resolver or the Interpreter
+            String[] fieldLists = type.split(":")[1].split("\\|");
+            String fields = fieldLists[0].trim();
+            String annotations = fieldLists.length > 1 ? fieldLists[1].trim() : null;
+            defineType(writer, baseName, className, fields, annotations);
         }
 
         // The base accept() method
@@ -66,11 +96,13 @@ public class AstGenerator {
         writer.close();
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-        writer.println("\tstatic class " + className + " extends " + baseName + " {" );
+    private static void defineType(PrintWriter writer, String baseName, String className,
+                                   String fieldList, String annotationList) {
+        writer.println("\tstatic final class " + className + " extends " + baseName + " {" );
 
         // Constructor
         writer.println("\t\t" + className + "(" + fieldList + ") {");
+        writer.println("\t\t\tsuper(" + kindName(className) + ");");
 
         // Store Parameters in the Fields
         String[] fields = fieldList.split((", "));
@@ -96,9 +128,41 @@ public class AstGenerator {
             writer.println("\t\tfinal " + field + ";");
         }
 
+        // Annotations are not final since they're set after construction,
+        // an annotation can bring its own initializer
+        if(annotationList != null) {
+            for(String annotation : annotationList.split(", ")) {
+                writer.println("\t\t" + annotation + ";");
+            }
+        }
+
         writer.println("\t}");
     }
 
+    /**
+     * An int per node class, so evaluators can switch over node.kind
+     */
+    private static void defineKinds(PrintWriter writer, String baseName, List<String> types) {
+        writer.println();
+        for(int i = 0; i < types.size(); i++) {
+            String typeName = types.get(i).split(":")[0].trim();
+            writer.println("\tstatic final int " + kindName(typeName) + " = " + i + ";");
+        }
+
+        writer.println();
+        writer.println("\tfinal int kind;");
+        writer.println();
+        writer.println("\tprivate " + baseName + "(int kind) {");
+        writer.println("\t\tthis.kind = kind;");
+        writer.println("\t}");
+        writer.println();
+    }
+
+    // CompareConstant -> COMPARE_CONSTANT
+    private static String kindName(String typeName) {
+        return typeName.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+    }
+
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
         writer.println(("\tinterface Visitor<R> {"));
 